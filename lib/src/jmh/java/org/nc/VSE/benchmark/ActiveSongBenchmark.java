@@ -0,0 +1,51 @@
+package org.nc.VSE.benchmark;
+
+import org.nc.VSE.ActiveSong;
+import org.nc.VSE.CompiledSong;
+import org.nc.VSE.SoundEvents;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One song tick: the stops and starts due on the tick, collected into SoundEvents.
+ * No players are involved, this is the sequencing cost alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ActiveSongBenchmark {
+
+    @Param({"1000", "20000", "200000"})
+    public int notes;
+
+    private ActiveSong song;
+    private final SoundEvents events = new SoundEvents();
+
+    @Setup
+    public void setup() {
+        CompiledSong compiled = Songs.song(notes).compile();
+        song = new ActiveSong("benchmark", compiled, true);
+    }
+
+    @Benchmark
+    public int tick() {
+        song.tick(events, 0L);
+        int size = events.size();
+        events.clear();
+        return size;
+    }
+}
@@ -0,0 +1,59 @@
+package org.nc.VSE.benchmark;
+
+import org.nc.VSE.Channel;
+import org.nc.VSE.CompiledSong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One channel tick: sequencing its songs and sending the result to every player.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChannelBenchmark {
+
+    @Param({"1", "50", "200"})
+    public int players;
+
+    @Param({"1", "4"})
+    public int songs;
+
+    @Param({"1000", "20000"})
+    public int notes;
+
+    private Channel channel;
+    private final Fakes.Recorder recorder = new Fakes.Recorder();
+
+    @Setup
+    public void setup() {
+        channel = new Channel("benchmark");
+        for (int p = 0; p < players; p++) {
+            channel.addPlayer(Fakes.player(p, recorder));
+        }
+        CompiledSong song = Songs.song(notes).compile();
+        for (int s = 0; s < songs; s++) {
+            channel.playSong(song, true, "song" + s);
+        }
+    }
+
+    @Benchmark
+    public long tick() {
+        channel.tick();
+        return recorder.plays;
+    }
+}
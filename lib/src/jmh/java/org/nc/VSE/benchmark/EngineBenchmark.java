@@ -0,0 +1,76 @@
+package org.nc.VSE.benchmark;
+
+import org.nc.VSE.CompiledSong;
+import org.nc.VSE.MultiChannelEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One full engine tick with N channels x M players x K notes per song,
+ * each channel playing its own looping copy of the song.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EngineBenchmark {
+
+    @Param({"10", "100"})
+    public int channels;
+
+    @Param({"10", "50"})
+    public int players;
+
+    @Param({"1000", "20000"})
+    public int notes;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private MultiChannelEngine engine;
+    private Fakes.ManualScheduler scheduler;
+    private final Fakes.Recorder recorder = new Fakes.Recorder();
+
+    @Setup
+    public void setup() {
+        scheduler = new Fakes.ManualScheduler();
+        engine = new MultiChannelEngine(Fakes.plugin(), scheduler);
+        engine.setParallelSequencing(parallel ? ForkJoinPool.commonPool() : null, 1);
+
+        CompiledSong song = Songs.song(notes).compile();
+        int id = 0;
+        for (int c = 0; c < channels; c++) {
+            String name = "channel" + c;
+            for (int p = 0; p < players; p++) {
+                engine.addPlayerToChannel(name, Fakes.player(id++, recorder));
+            }
+            engine.playSong(name, song, true, "song");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    @Benchmark
+    public long tick() {
+        scheduler.runTick();
+        return recorder.plays;
+    }
+}
@@ -0,0 +1,156 @@
+package org.nc.VSE.benchmark;
+
+import org.bukkit.NamespacedKey;
+import org.bukkit.Sound;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.nc.VSE.EngineScheduler;
+import org.nc.VSE.SoundOutput;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Stand-ins for the server objects the engine touches, so the benchmarks run
+ * without a server. Players only count the sounds they are sent.
+ */
+final class Fakes {
+    private Fakes() {
+    }
+
+    /**
+     * Counts the playSound/stopSound calls made on fake players.
+     */
+    static final class Recorder {
+        long plays;
+        long stops;
+    }
+
+    static Player player(int id, Recorder recorder) {
+        UUID uuid = new UUID(0L, id);
+        String name = "player" + id;
+        return proxy(Player.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "playSound":
+                    recorder.plays++;
+                    return null;
+                case "stopSound":
+                    recorder.stops++;
+                    return null;
+                case "getUniqueId":
+                    return uuid;
+                case "getName":
+                    return name;
+                case "isOnline":
+                    return true;
+                case "hashCode":
+                    return id;
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return name;
+                default:
+                    return defaultValue(method);
+            }
+        });
+    }
+
+    /**
+     * A Sound that needs no server registry; compared by identity like real ones.
+     */
+    static Sound sound(String key) {
+        NamespacedKey namespacedKey = new NamespacedKey("minecraft", key);
+        return proxy(Sound.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getKey":
+                case "key":
+                    return namespacedKey;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return key;
+                default:
+                    return defaultValue(method);
+            }
+        });
+    }
+
+    static Plugin plugin() {
+        Logger logger = Logger.getLogger("VSE-benchmark");
+        return proxy(Plugin.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getLogger":
+                    return logger;
+                case "getName":
+                    return "VSE-benchmark";
+                case "isEnabled":
+                    return true;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "VSE-benchmark";
+                default:
+                    return defaultValue(method);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, java.lang.reflect.InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(Fakes.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (!type.isPrimitive() || type == void.class) return null;
+        if (type == boolean.class) return false;
+        if (type == char.class) return '\0';
+        if (type == float.class) return 0f;
+        if (type == double.class) return 0d;
+        if (type == long.class) return 0L;
+        if (type == byte.class) return (byte) 0;
+        if (type == short.class) return (short) 0;
+        return 0;
+    }
+
+    /**
+     * An EngineScheduler the benchmark ticks by hand, sending sounds straight to the players.
+     */
+    static final class ManualScheduler implements EngineScheduler {
+        private Runnable tick;
+        private boolean running;
+
+        @Override
+        public void start(Runnable tick) {
+            this.tick = tick;
+            this.running = true;
+        }
+
+        @Override
+        public void stop() {
+            running = false;
+        }
+
+        @Override
+        public boolean isRunning() {
+            return running;
+        }
+
+        @Override
+        public SoundOutput getOutput() {
+            return SoundOutput.direct();
+        }
+
+        void runTick() {
+            if (running) {
+                tick.run();
+            }
+        }
+    }
+}
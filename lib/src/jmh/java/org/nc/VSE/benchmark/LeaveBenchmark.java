@@ -0,0 +1,94 @@
+package org.nc.VSE.benchmark;
+
+import org.bukkit.entity.Player;
+import org.nc.VSE.MultiChannelEngine;
+import org.nc.VSE.Note;
+import org.nc.VSE.Song;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A player leaving every channel while hearing sustained notes in each,
+ * i.e. the stop path of removePlayerFromAllChannels.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LeaveBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int channels;
+
+    @Param({"10"})
+    public int playersPerChannel;
+
+    private MultiChannelEngine engine;
+    private Fakes.ManualScheduler scheduler;
+    private final Fakes.Recorder recorder = new Fakes.Recorder();
+    private Player leaver;
+
+    @Setup
+    public void setup() {
+        scheduler = new Fakes.ManualScheduler();
+        engine = new MultiChannelEngine(Fakes.plugin(), scheduler);
+        engine.setParallelSequencing(null, Integer.MAX_VALUE);
+
+        // every tick starts held notes on several instruments, each lasting 100 ticks
+        Song song = new Song("held", Song.DEFAULT_TEMPO);
+        for (int t = 0; t < Songs.LENGTH_TICKS; t++) {
+            for (int i = 0; i < 4; i++) {
+                song.addNote(new Note("custom.held" + ((t + i) % 8), t, t + 100, 1f, 1f));
+            }
+        }
+
+        int id = 0;
+        for (int c = 0; c < channels; c++) {
+            String name = "channel" + c;
+            for (int p = 0; p < playersPerChannel; p++) {
+                engine.addPlayerToChannel(name, Fakes.player(id++, recorder));
+            }
+            engine.playSong(name, song, true, "song");
+        }
+        leaver = Fakes.player(id, recorder);
+    }
+
+    /**
+     * Joins every channel and hears a few ticks, so there is something to stop.
+     */
+    @Setup(Level.Invocation)
+    public void join() {
+        for (int c = 0; c < channels; c++) {
+            engine.addPlayerToChannel("channel" + c, leaver);
+        }
+        for (int t = 0; t < 3; t++) {
+            scheduler.runTick();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    @Benchmark
+    public long leave() {
+        engine.removePlayerFromAllChannels(leaver);
+        return recorder.stops;
+    }
+}
@@ -0,0 +1,74 @@
+package org.nc.VSE.benchmark;
+
+import org.nc.VSE.CompiledSong;
+import org.nc.VSE.MappedSong;
+import org.nc.VSE.Note;
+import org.nc.VSE.Song;
+import org.nc.VSE.SongFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building songs: Note objects into a Song and its CompiledSong, and
+ * writing/opening the binary song format.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SongBuildBenchmark {
+
+    @Param({"1000", "100000"})
+    public int notes;
+
+    private List<Note> noteList;
+    private CompiledSong compiled;
+    private ByteBuffer encoded;
+
+    @Setup
+    public void setup() {
+        noteList = Songs.notes(notes, false);
+        // song files resolve Sounds through the server registry, so use custom keys only
+        Song custom = new Song("custom", Song.DEFAULT_TEMPO);
+        for (Note n : Songs.notes(notes, true)) {
+            custom.addNote(n);
+        }
+        compiled = custom.compile();
+        encoded = SongFormat.encode(compiled);
+    }
+
+    @Benchmark
+    public CompiledSong buildAndCompile() {
+        Song song = new Song("benchmark", Song.DEFAULT_TEMPO);
+        for (int i = 0; i < noteList.size(); i++) {
+            song.addNote(noteList.get(i));
+        }
+        return song.compile();
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return SongFormat.encode(compiled);
+    }
+
+    @Benchmark
+    public MappedSong open() throws IOException {
+        return SongFormat.read(encoded.duplicate());
+    }
+}
@@ -0,0 +1,57 @@
+package org.nc.VSE.benchmark;
+
+import org.bukkit.Sound;
+import org.bukkit.SoundCategory;
+import org.nc.VSE.Note;
+import org.nc.VSE.Song;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reproducible random songs for the benchmarks.
+ */
+final class Songs {
+    static final int LENGTH_TICKS = 2000; // 100 seconds at 20 ticks per second
+
+    private static final Sound[] SOUNDS = {
+            Fakes.sound("block.note_block.harp"),
+            Fakes.sound("block.note_block.bass"),
+            Fakes.sound("block.note_block.bell"),
+            Fakes.sound("block.note_block.flute"),
+            Fakes.sound("block.note_block.pling")
+    };
+
+    private Songs() {
+    }
+
+    /**
+     * notes notes over LENGTH_TICKS ticks; a quarter of them are held for up to 40 ticks,
+     * and some play a custom sound key instead of a Sound.
+     */
+    static List<Note> notes(int notes, boolean customKeysOnly) {
+        Random random = new Random(42);
+        List<Note> list = new ArrayList<>(notes);
+        for (int i = 0; i < notes; i++) {
+            int start = random.nextInt(LENGTH_TICKS);
+            int end = random.nextInt(4) == 0 ? start + 1 + random.nextInt(40) : start;
+            float pitch = 0.5f + random.nextInt(25) / 16f;
+            float volume = 0.25f + random.nextFloat() * 0.75f;
+            if (customKeysOnly || random.nextInt(8) == 0) {
+                list.add(new Note("custom.instrument" + random.nextInt(4), start, end, pitch, volume));
+            } else {
+                list.add(new Note(SOUNDS[random.nextInt(SOUNDS.length)], SoundCategory.MASTER, start, end, pitch, volume));
+            }
+        }
+        return list;
+    }
+
+    static Song song(int notes) {
+        Song song = new Song("benchmark-" + notes, Song.DEFAULT_TEMPO);
+        for (Note n : notes(notes, false)) {
+            song.addNote(n);
+        }
+        return song;
+    }
+}
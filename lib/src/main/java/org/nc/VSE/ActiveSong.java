@@ -1,68 +1,170 @@
 // Example ActiveSong
 package org.nc.VSE;
 
-import org.bukkit.NamespacedKey;
-import org.bukkit.Registry;
-import org.bukkit.Sound;
 import org.bukkit.SoundCategory;
-import org.bukkit.entity.Player;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
 
 public class ActiveSong {
+    private static final SoundCategory[] CATEGORIES = SoundCategory.values();
+    private static final int INITIAL_HELD_CAPACITY = 8;
+
     private final String songId;
     private final Song song;
+    private final SongTimeline timeline;
     private final boolean looping;
 
-    private int currentTick;
+    private int currentTick; // our cursor into the shared SongTimeline
+    private int seekTo = -1; // tick to jump to on the next tick(), or -1
+    private int deferredTicks; // SERVER_TICKS ticks the engine deferred, played late on the next tick()
+    private int loopStart; // where a loop wraps to
+    private int[] wrapNotes; // notes sounding going into loopStart, found on the first wrap
+    private int[] found; // scratch for soundingAt, reused by every seek
+    private int foundCount;
+    private IntConsumer finder; // adds a note to found; made on the first seek or wrap
     private boolean stopped;
+    private Runnable onEnd; // run once when the channel drops this song, e.g. to unpin it in a SongLibrary
+    private Priority priority; // null: the channel's
+
+    private TimingMode timing = TimingMode.SERVER_TICKS;
+    private LatePolicy latePolicy = LatePolicy.CATCH_UP;
+    private boolean clockStarted;
+    private long loopStartNanos; // WALL_CLOCK: when tick 0 of the current pass was due
+    private int[] collapsedInPass; // COLLAPSE: per palette entry, the catch-up pass it last played in
+    private int collapsePass;
 
     /**
-     * For each Note in the Song, we keep track of:
-     *  - the original Note
-     *  - whether it is currently "active" (we played it but haven't ended it yet)
-     *  - which SoundCategory we actually used to play it
+     * The notes we played but haven't ended yet, and which SoundCategory we
+     * actually used for each. Only sustained notes are kept here, so the list
+     * stays small no matter how long the song is; the song data itself is
+     * the shared, read-only SongTimeline.
      */
-    private static class NotePlayback {
-        final Note note;
-        boolean isPlaying;
-        SoundCategory categoryUsed; // <- what category we ended up using
+    private int[] heldNotes = new int[INITIAL_HELD_CAPACITY];
+    private byte[] heldCategories = new byte[INITIAL_HELD_CAPACITY];
+    // palette index and sound slot of each held note, so ending it never reads
+    // the note again (a StreamingSong may have dropped it by then)
+    private short[] heldInstruments = new short[INITIAL_HELD_CAPACITY];
+    private short[] heldSlots = new short[INITIAL_HELD_CAPACITY];
+    private int heldCount;
 
-        NotePlayback(Note n) {
-            this.note = n;
-            this.isPlaying = false;
-            this.categoryUsed = n.getCategory(); // default to note's own category
-        }
-    }
+    // per sound slot: how many of our notes with that Sound are currently held in MASTER
+    private final int[] activeInMaster;
 
-    private final List<NotePlayback> notePlaybacks;
+    // this song's number in an EventTrace (engine thread only)
+    EventTrace tracedBy;
+    int traceId;
 
     public ActiveSong(String songId, Song song, boolean looping) {
+        this(songId, song, song.compile(), looping);
+    }
+
+    /**
+     * Plays a CompiledSong, MappedSong or other timeline directly, without a Song
+     * (getSong() returns null).
+     */
+    public ActiveSong(String songId, SongTimeline timeline, boolean looping) {
+        this(songId, null, timeline, looping);
+    }
+
+    private ActiveSong(String songId, Song song, SongTimeline timeline, boolean looping) {
         this.songId = songId;
         this.song = song;
+        this.timeline = timeline;
         this.looping = looping;
         this.currentTick = 0;
         this.stopped = false;
 
-        this.notePlaybacks = new ArrayList<>();
-        for (Note n : song.getNotes()) {
-            notePlaybacks.add(new NotePlayback(n));
-        }
+        this.activeInMaster = new int[timeline.getSoundSlotCount()];
     }
 
     public String getSongId() {
         return songId;
     }
 
+    /**
+     * The Song this was started from, or null if it was started from a SongTimeline.
+     */
     public Song getSong() {
         return song;
     }
 
+    public SongTimeline getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * Sets how this song is timed; call it before the song's first tick.
+     */
+    public void setTiming(TimingMode timing, LatePolicy latePolicy) {
+        this.timing = timing;
+        this.latePolicy = latePolicy;
+    }
+
+    public TimingMode getTiming() {
+        return timing;
+    }
+
+    public LatePolicy getLatePolicy() {
+        return latePolicy;
+    }
+
     public boolean isLooping() {
         return looping;
     }
 
+    /**
+     * The song tick the next tick() plays.
+     */
+    public int getCurrentTick() {
+        return seekTo >= 0 ? seekTo : currentTick;
+    }
+
+    /**
+     * Jumps to a song tick on the next tick(); call it right after starting
+     * the song to start part-way through. Sustained notes that would be
+     * sounding at that tick are started (or kept, if already held) and the
+     * other held notes are stopped, so listeners hear what they would have
+     * if the song had played up to there. WALL_CLOCK timing restarts its
+     * clock from that tick.
+     *
+     * @throws UnsupportedOperationException for a StreamingSong, which only plays forward
+     */
+    public void seek(int tick) {
+        checkSeekable(tick);
+        seekTo = tick;
+        deferredTicks = 0;
+    }
+
+    /**
+     * Where a looping song goes on after its last tick; 0 by default. Notes
+     * of the loop's lead-in still sounding at that tick carry on across the
+     * wrap instead of being stopped and started again.
+     *
+     * @throws UnsupportedOperationException for a StreamingSong and a tick other than 0
+     */
+    public void setLoopStart(int tick) {
+        if (tick != 0) {
+            checkSeekable(tick);
+        }
+        loopStart = tick;
+        wrapNotes = null;
+    }
+
+    public int getLoopStart() {
+        return loopStart;
+    }
+
+    private void checkSeekable(int tick) {
+        if (timeline instanceof StreamingSong) {
+            throw new UnsupportedOperationException("A StreamingSong can only play forward");
+        }
+        if (tick < 0 || tick > timeline.getMaxEndTick()) {
+            throw new IllegalArgumentException("Tick " + tick + " is outside the song (0.."
+                    + timeline.getMaxEndTick() + ")");
+        }
+    }
+
     public boolean isStopped() {
         return stopped;
     }
@@ -71,80 +173,133 @@ public class ActiveSong {
         this.stopped = true;
     }
 
-    public void stopAllActiveNotesForSinglePlayer(Player player) {
-        // We do NOT mark np.isPlaying = false,
-        // since the note should keep playing for other players.
-        for (NotePlayback np : notePlaybacks) {
-            if (np.isPlaying) {
-                     if(np.note.getInstr()!=null){
-                        for (SoundCategory category : SoundCategory.values()) {
-                            player.stopSound(np.note.getInstr(), category);
-                        }
-                        //player.stopSound(np.note.getInstr(), np.categoryUsed);
+    /**
+     * This song's priority when the engine is over budget, or null to use the channel's.
+     */
+    public Priority getPriority() {
+        return priority;
+    }
 
-                    }
-                else{
-                    player.stopSound(np.note.getInstrument(), np.categoryUsed);
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
 
-            }
+    /**
+     * The engine skips this song's tick to save time, see Priority.AMBIENT.
+     * A SERVER_TICKS song plays the skipped tick late on its next tick, as its
+     * LatePolicy says, so it keeps its place on the timeline; a WALL_CLOCK
+     * song catches up by the clock anyway.
+     */
+    void defer() {
+        if (timing == TimingMode.SERVER_TICKS) {
+            deferredTicks++;
         }
     }
-    
+
+    void setOnEnd(Runnable onEnd) {
+        this.onEnd = onEnd;
     }
+
+    /**
+     * Called by the channel once it no longer plays this song.
+     */
+    void ended() {
+        Runnable r = onEnd;
+        onEnd = null;
+        if (r != null) {
+            r.run();
+        }
+    }
+
     /**
      * Called each tick by the Channel.
-     *  1) If currentTick == startTick => play the note
-     *  2) If isPlaying && currentTick == endTick => stop the note
+     *  1) Stop every held note whose endTick is this tick
+     *  2) Play every note whose startTick is this tick
      *  3) If forced stop => stop them all immediately.
+     * Only the events indexed under the current tick are visited. The plays
+     * and stops are appended to the channel's SoundEvents; the channel
+     * delivers them to its players afterwards.
+     *
+     * With SERVER_TICKS timing every call advances one song tick. With
+     * WALL_CLOCK timing, every song tick that is due by now (System.nanoTime()
+     * of this engine tick) is processed, so a lagging server catches up.
      */
-    public boolean tick(List<Player> channelPlayers) {
+    public boolean tick(SoundEvents events, long now) {
         if (stopped) {
             // We were forcibly stopped => stop all active notes right away
-            stopAllActiveNotes(channelPlayers);
+            stopAllActiveNotes(events);
             return false;
         }
-
-        for (NotePlayback np : notePlaybacks) {
-            Note note = np.note;
-
-            // (1) Start the note
-            if (!np.isPlaying && currentTick == note.getStartTick()) {
-                // Decide which category to use
-                SoundCategory catToUse = pickCategoryFor(note.getInstrument(), note.getCategory());
-
-                // Actually playSound in that category
-                for (Player p : channelPlayers) {
-                    if(note.getInstr()!=null){    
-                // Sound temp=getSoundSafely(note.getInstr());
-                   //  if(temp!=null){
-                     p.playSound(p.getLocation(), note.getInstr(), note.getVolume(), note.getPitch());
+        if (seekTo >= 0) {
+            int count = soundingAt(seekTo); // may grow found, so read it after
+            moveTo(events, seekTo, found, count);
+            seekTo = -1;
+            if (timing == TimingMode.WALL_CLOCK) {
+                loopStartNanos = now - currentTick * timeline.getNanosPerTick();
+                clockStarted = true;
+            }
+        }
+        if (timing == TimingMode.SERVER_TICKS) {
+            if (deferredTicks > 0) {
+                collapsePass++;
+                while (deferredTicks > 0) {
+                    long due = currentTick + deferredTicks;
+                    deferredTicks--;
+                    if (!step(events, true, due)) {
+                        deferredTicks = 0;
+                        return false;
                     }
-                    else{
-                   p.playSound(p.getLocation(), note.getInstrument(), catToUse, note.getVolume(), note.getPitch());}
-              
-
-                // Mark active if it’s a multi-tick note
-                if (note.getEndTick() > note.getStartTick()) {
-                    np.isPlaying = true;
-                    np.categoryUsed = catToUse; // store which category we actually used
                 }
             }
+            return step(events, false, currentTick);
+        }
+
+        if (!clockStarted) {
+            loopStartNanos = now;
+            clockStarted = true;
+        }
+        long nanosPerTick = timeline.getNanosPerTick();
+        long due = (now - loopStartNanos) / nanosPerTick; // song tick that is due right now
+        collapsePass++;
+        while (currentTick <= due) {
+            int before = currentTick;
+            if (!step(events, currentTick < due, due)) {
+                return false;
+            }
+            if (currentTick <= before) {
+                // we looped: the next pass of the song starts right after this one
+                long length = timeline.getMaxEndTick() + 1L - loopStart;
+                loopStartNanos += length * nanosPerTick;
+                due -= length;
             }
+        }
+        return true;
+    }
 
-            // (2) End the note
-            if (np.isPlaying && currentTick >= note.getEndTick()&&note.getEndTick()!=note.getStartTick()) {
-                // Stop it in the exact category we used
-                for (Player p : channelPlayers) {
-                    if(note.getInstr()!=null){
-                        for (SoundCategory category : SoundCategory.values()) {
-                            p.stopSound(note.getInstr(), category);
-                        }
-                }else{
-                    p.stopSound(note.getInstrument(), np.categoryUsed);
+    /**
+     * Processes one song tick. late is true if this tick is overdue (WALL_CLOCK
+     * catching up); its starts are then filtered by the LatePolicy. due is the
+     * song tick that is due now.
+     */
+    private boolean step(SoundEvents events, boolean late, long due) {
+        // (1) End the notes due this tick, before starting new ones,
+        //     so a note ending here cannot cut off the same sound starting here
+        for (int i = timeline.stopsFrom(currentTick), end = timeline.stopsTo(currentTick); i < end; i++) {
+            int h = indexOfHeld(timeline.stopNote(i));
+            if (h < 0) continue;
+
+            // Stop it in the exact category we used
+            events.stop(timeline.getPaletteEntry(heldInstruments[h]), CATEGORIES[heldCategories[h]]);
+            release(h);
+        }
 
-                }
-                }
-                np.isPlaying = false;
+        // (2) Start the notes due this tick. A note can't still be held here: it is only
+        //     ever started on its startTick, and a loop or seek only keeps notes started earlier.
+        if (!(late && latePolicy == LatePolicy.DROP)) {
+            for (int i = timeline.startsFrom(currentTick), end = timeline.startsTo(currentTick); i < end; i++) {
+                int index = timeline.startNote(i);
+                if (late && latePolicy == LatePolicy.COLLAPSE && !collapse(index, due)) continue;
+                startNote(events, index);
             }
         }
 
@@ -152,16 +307,18 @@ public class ActiveSong {
         currentTick++;
 
         // (4) check if we’re past the final note
-        int maxTick = getMaxEndTick();
-        if (currentTick > maxTick) {
+        if (currentTick > timeline.getMaxEndTick()) {
             if (looping) {
-                // reset to start
-                currentTick = 0;
-                resetAllNotes(channelPlayers);
-                return true;  
+                // wrap to the loop start, keeping the notes that sound across it
+                if (wrapNotes == null) {
+                    int count = soundingAt(loopStart);
+                    wrapNotes = Arrays.copyOf(found, count);
+                }
+                moveTo(events, loopStart, wrapNotes, wrapNotes.length);
+                return true;
             } else {
                 // done with the song
-                stopAllActiveNotes(channelPlayers);
+                stopAllActiveNotes(events);
                 stopped = true;
                 return false;
             }
@@ -169,18 +326,107 @@ public class ActiveSong {
         return true;
     }
 
+    private void startNote(SoundEvents events, int index) {
+        if (events.thin(timeline.getVolume(index))) {
+            return; // too quiet to play while the engine is over budget
+        }
+        Instrument instrument = timeline.getInstrument(index);
+
+        // Decide which category to use; custom sound keys always play in MASTER
+        SoundCategory catToUse = instrument.isCustom()
+                ? SoundCategory.MASTER
+                : pickCategoryFor(index, timeline.getCategory(index));
+
+        boolean sustained = timeline.isSustained(index);
+        events.play(instrument, catToUse, timeline.getVolume(index), timeline.getPitch(index),
+                timeline.getSoundHandle(index, catToUse), sustained);
+
+        // Mark active if it’s a multi-tick note
+        if (sustained) {
+            hold(index, catToUse); // store which category we actually used
+        }
+    }
+
+    /**
+     * COLLAPSE policy for an overdue note: play it only if it would still be
+     * sounding now and its instrument hasn't played yet in this catch-up pass.
+     */
+    private boolean collapse(int index, long due) {
+        if (timeline.isSustained(index) && timeline.getEndTick(index) <= due) {
+            return false;
+        }
+        if (collapsedInPass == null) {
+            collapsedInPass = new int[timeline.getPaletteSize()];
+        }
+        int instrument = timeline.getInstrumentIndex(index);
+        if (collapsedInPass[instrument] == collapsePass) {
+            return false;
+        }
+        collapsedInPass[instrument] = collapsePass;
+        return true;
+    }
+
+    /**
+     * Adds a note to the held list and to the MASTER count.
+     */
+    private void hold(int index, SoundCategory category) {
+        if (heldCount == heldNotes.length) {
+            heldNotes = Arrays.copyOf(heldNotes, heldCount * 2);
+            heldCategories = Arrays.copyOf(heldCategories, heldCount * 2);
+            heldInstruments = Arrays.copyOf(heldInstruments, heldCount * 2);
+            heldSlots = Arrays.copyOf(heldSlots, heldCount * 2);
+        }
+        int slot = timeline.soundSlot(index);
+        heldNotes[heldCount] = index;
+        heldCategories[heldCount] = (byte) category.ordinal();
+        heldInstruments[heldCount] = (short) timeline.getInstrumentIndex(index);
+        heldSlots[heldCount] = (short) slot;
+        heldCount++;
+
+        if (slot >= 0 && category == SoundCategory.MASTER) {
+            activeInMaster[slot]++;
+        }
+    }
+
+    /**
+     * Position of the note in the held list, or -1 if it isn't held.
+     */
+    private int indexOfHeld(int index) {
+        for (int h = 0; h < heldCount; h++) {
+            if (heldNotes[h] == index) {
+                return h;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes entry h from the held list and drops it from the MASTER count.
+     */
+    private void release(int h) {
+        int slot = heldSlots[h];
+        if (slot >= 0 && heldCategories[h] == SoundCategory.MASTER.ordinal()) {
+            activeInMaster[slot]--;
+        }
+        heldCount--;
+        heldNotes[h] = heldNotes[heldCount];
+        heldCategories[h] = heldCategories[heldCount];
+        heldInstruments[h] = heldInstruments[heldCount];
+        heldSlots[h] = heldSlots[heldCount];
+    }
+
     /**
      * If you want "mostly MASTER" but to override the category if something
      * with the same instrument is already playing in MASTER, we do that logic here.
      */
-    private SoundCategory pickCategoryFor(org.bukkit.Sound instr, SoundCategory defaultCat) {
+    private SoundCategory pickCategoryFor(int index, SoundCategory defaultCat) {
         // 1) If defaultCat is not MASTER, just respect that
         if (defaultCat != SoundCategory.MASTER) {
             return defaultCat;
         }
 
         // 2) Otherwise, check if we have the same instrument *currently playing* in MASTER
-        if (isInstrumentActiveInMaster(instr)) {
+        if (isInstrumentActiveInMaster(index)) {
             // If yes, pick some fallback category. Let's pick MUSIC, for example.
             return SoundCategory.MUSIC;
         }
@@ -192,59 +438,114 @@ public class ActiveSong {
     /**
      * Checks whether we have a note still "playing" (not ended) in MASTER with the same Sound
      */
-    private boolean isInstrumentActiveInMaster(org.bukkit.Sound instr) {
-        for (NotePlayback np : notePlaybacks) {
-            if (np.isPlaying
-            && np.note.getInstrument()==null){
-                return false;
-            }
-            if (np.isPlaying
-                && np.categoryUsed == SoundCategory.MASTER
-                && np.note.getInstrument() == instr) {
-                return true;
-            }
+    private boolean isInstrumentActiveInMaster(int index) {
+        int slot = timeline.soundSlot(index);
+        return slot >= 0 && activeInMaster[slot] > 0;
+    }
+
+    /**
+     * How many of the next tick() calls would have nothing to do (no note
+     * starts or stops, the song doesn't end or loop), at most max.
+     * For a WALL_CLOCK song this counts song ticks, see nextEventNanos.
+     */
+    int idleTicksAhead(int max) {
+        if (stopped || seekTo >= 0 || deferredTicks > 0 || (timing == TimingMode.WALL_CLOCK && !clockStarted)) {
+            return 0;
         }
-        return false;
+        return timeline.emptyTicksFrom(currentTick, max);
     }
 
     /**
-     * Get the highest endTick in the song so we know when it’s done
+     * WALL_CLOCK only: System.nanoTime() at which the song next has something to do.
      */
-    private int getMaxEndTick() {
-        int max = 0;
-        for (NotePlayback np : notePlaybacks) {
-            max = Math.max(max, np.note.getEndTick());
+    long nextEventNanos(int max) {
+        int idle = idleTicksAhead(max);
+        if (idle == 0) {
+            return Long.MIN_VALUE;
         }
-        return max;
+        return loopStartNanos + (currentTick + idle) * timeline.getNanosPerTick();
+    }
+
+    /**
+     * Moves a SERVER_TICKS song ahead over ticks the engine skipped because
+     * idleTicksAhead said they are empty. WALL_CLOCK songs follow the clock anyway.
+     */
+    void skip(int ticks) {
+        if (timing == TimingMode.SERVER_TICKS) {
+            currentTick += ticks;
+        }
+    }
+
+    /**
+     * How many sustained notes of this song are sounding right now.
+     */
+    public int getHeldCount() {
+        return heldCount;
+    }
+
+    /**
+     * Get the highest endTick in the song so we know when it’s done
+     */
+    public int getMaxEndTick() {
+        return timeline.getMaxEndTick();
     }
 
     /**
      * Called if the song forcibly stops or finishes. 
      * Stop every note that is currently playing.
      */
-    private void stopAllActiveNotes(List<Player> channelPlayers) {
-        for (NotePlayback np : notePlaybacks) {
-            if (np.isPlaying) {
-                for (Player p : channelPlayers) {
-                    if(np.note.getInstr()!=null){
-                        for (SoundCategory category : SoundCategory.values()) {
-                            p.stopSound(np.note.getInstr(), category);
-                        }
-                        //p.stopSound(np.note.getInstr(), np.categoryUsed);
-                    }
-                    p.stopSound(np.note.getInstrument(), np.categoryUsed);
-                }
-                np.isPlaying = false;
+    private void stopAllActiveNotes(SoundEvents events) {
+        while (heldCount > 0) {
+            int h = heldCount - 1;
+            events.stop(timeline.getPaletteEntry(heldInstruments[h]), CATEGORIES[heldCategories[h]]);
+            release(h);
+        }
+    }
+
+    /**
+     * Moves the cursor to tick, where exactly the first count notes of sounding
+     * are held: other held notes are stopped, and those not held yet are started.
+     */
+    private void moveTo(SoundEvents events, int tick, int[] sounding, int count) {
+        for (int h = heldCount - 1; h >= 0; h--) {
+            if (!contains(sounding, count, heldNotes[h])) {
+                events.stop(timeline.getPaletteEntry(heldInstruments[h]), CATEGORIES[heldCategories[h]]);
+                release(h);
             }
         }
+        for (int i = 0; i < count; i++) {
+            if (indexOfHeld(sounding[i]) < 0) {
+                startNote(events, sounding[i]);
+            }
+        }
+        currentTick = tick;
+    }
+
+    private static boolean contains(int[] notes, int count, int note) {
+        for (int i = 0; i < count; i++) {
+            if (notes[i] == note) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * If we loop, we want to re-activate from the start, 
-     * so we also stop any note that might still be playing.
+     * Puts the sustained notes sounding going into tick at the start of found
+     * and returns how many there are, see SongTimeline.forEachSoundingAt.
      */
-    private void resetAllNotes(List<Player> channelPlayers) {
-        stopAllActiveNotes(channelPlayers);
-        // currentTick reset done in the main logic
+    private int soundingAt(int tick) {
+        if (finder == null) {
+            found = new int[INITIAL_HELD_CAPACITY];
+            finder = note -> {
+                if (foundCount == found.length) {
+                    found = Arrays.copyOf(found, foundCount * 2);
+                }
+                found[foundCount++] = note;
+            };
+        }
+        foundCount = 0;
+        timeline.forEachSoundingAt(tick, finder);
+        return foundCount;
     }
 }
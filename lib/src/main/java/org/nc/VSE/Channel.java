@@ -1,6 +1,5 @@
 package org.nc.VSE;
 
-import org.bukkit.Sound;
 import org.bukkit.entity.Player;
 
 import java.util.*;
@@ -14,51 +13,263 @@ import java.util.*;
  * The channel's tick() updates all songs, playing notes to its players.
  */
 public class Channel {
-    private final Set<Sound> allPlayedSounds = new HashSet<>();
-    private final Set<String> allPlayedStrings = new HashSet<>();
+    private static final Player[] NO_PLAYERS = new Player[0];
+    private static final SoundLedger[] NO_LEDGERS = new SoundLedger[0];
+    private static final int MAX_IDLE_TICKS = 100; // how far ahead sequence() looks for the next event
+
     private final String channelName;
-    private final Set<Player> players;           // All players in this channel
+    private final SoundOutput output;
+    private final Map<UUID, Member> players; // All players in this channel, by UUID
+    private final Set<Player> playersView;
+    PlayerIndex playerIndex; // the engine's player -> channels index, or null
+    private Runnable onSongChange; // tells the engine a song starts or stops, so it doesn't sleep through it
+    EventTrace trace; // records what is sent, or null
     private final Map<String, ActiveSong> activeSongs;
       // songId -> ActiveSong
+    private final List<ActiveSong> songOrder = new ArrayList<>(); // same songs, for index-based ticking
+
+    // Copy-on-write snapshot of players (and their ledgers, same index),
+    // rebuilt only when membership changes and shared by every song each tick.
+    private Player[] audience = NO_PLAYERS;
+    private SoundLedger[] audienceLedgers = NO_LEDGERS;
+
+    // Timing given to songs started in this channel
+    private TimingMode timing = TimingMode.SERVER_TICKS;
+    private LatePolicy latePolicy = LatePolicy.CATCH_UP;
+
+    // What this tick's songs played and stopped, delivered after all songs ticked
+    private final SoundEvents events = new SoundEvents();
+
+    private Priority priority = Priority.NORMAL;
+    // Set by the engine each tick: per Priority, the volume under which notes are
+    // skipped (null while within budget), and whether AMBIENT songs sit this tick out
+    private float[] quietVolumes;
+    private boolean deferAmbient;
+
+    // Set by sequence(): ticks until a SERVER_TICKS song here has something to do,
+    // and when the first WALL_CLOCK song does
+    private int idleTicks;
+    private long nextEventNanos;
+
+    // Sounds sent (and notes skipped) since the engine last collected them (engine thread only)
+    long playsSent;
+    long stopsSent;
+    long notesThinned;
+    int songsDeferred;
+
+    // Last tick's stats, written by the engine thread when metrics are on, read by snapshots
+    private long sequenceNanos;
+    private volatile long lastTickNanos;
+    private volatile int lastSongCount;
+    private volatile int lastHeldCount;
+    private volatile int lastAudienceSize;
 
     public Channel(String channelName) {
+        this(channelName, SoundOutput.direct());
+    }
+
+    /**
+     * @param output where this channel's sounds are sent, normally the engine scheduler's output
+     */
+    public Channel(String channelName, SoundOutput output) {
         this.channelName = channelName;
-        this.players = new HashSet<>();
+        this.output = output;
+        this.players = new HashMap<>();
+        this.playersView = new PlayerSet();
         this.activeSongs = new HashMap<>();
     }
 
+    /**
+     * A member: the Player to send sounds to, and what it hears sustained.
+     */
+    private static final class Member {
+        final Player player;
+        final SoundLedger ledger = new SoundLedger();
+
+        Member(Player player) {
+            this.player = player;
+        }
+    }
+
+    /**
+     * Read-only Set view of the members' Player objects; contains() goes by UUID.
+     */
+    private final class PlayerSet extends AbstractSet<Player> {
+        @Override
+        public Iterator<Player> iterator() {
+            Iterator<Member> it = players.values().iterator();
+            return new Iterator<Player>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Player next() {
+                    return it.next().player;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return players.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof Player && players.containsKey(((Player) o).getUniqueId());
+        }
+    }
+
+    void setPlayerIndex(PlayerIndex playerIndex) {
+        this.playerIndex = playerIndex;
+    }
+
+    void setTrace(EventTrace trace) {
+        this.trace = trace;
+    }
+
+    void setOnSongChange(Runnable onSongChange) {
+        this.onSongChange = onSongChange;
+    }
+
+    private void songChanging() {
+        if (onSongChange != null) {
+            onSongChange.run();
+        }
+    }
+
     public String getChannelName() {
         return channelName;
     }
 
+    public SoundOutput getOutput() {
+        return output;
+    }
+
     /**
      * Add a player to this channel so they hear all active songs.
      */
     public void addPlayer(Player p) {
-        players.add(p);
+        Member m = players.get(p.getUniqueId());
+        if (m != null && m.player == p) {
+            return;
+        }
+        // new, or rejoined with a new Player object: a rejoined client hears nothing, so start a fresh ledger
+        players.put(p.getUniqueId(), new Member(p));
+        rebuildAudience();
+        if (playerIndex != null) {
+            playerIndex.joined(p, this);
+        }
     }
 
     /**
      * Remove a player, so they no longer hear songs in this channel.
+     * Only the sustained sounds this player is actually hearing get a stop.
      */
     public void removePlayer(Player p) {
-        if (!players.contains(p)) return; 
-        for (ActiveSong as : activeSongs.values()) {
-            as.stopAllActiveNotesForSinglePlayer(p);}
-        players.remove(p);
+        removePlayer(p.getUniqueId());
+    }
+
+    /**
+     * Same as above, by UUID, e.g. for a player that is already offline.
+     */
+    public void removePlayer(UUID playerId) {
+        Member m = players.remove(playerId);
+        if (m == null) return;
+        stopsSent += m.ledger.stopAll(m.player, output, trace, channelName);
+        rebuildAudience();
+        if (playerIndex != null) {
+            playerIndex.left(playerId, this);
+        }
+    }
+
+    public boolean hasPlayer(UUID playerId) {
+        return players.containsKey(playerId);
+    }
+
+    private void rebuildAudience() {
+        Player[] newAudience = new Player[players.size()];
+        SoundLedger[] newLedgers = new SoundLedger[newAudience.length];
+        int i = 0;
+        for (Member m : players.values()) {
+            newAudience[i] = m.player;
+            newLedgers[i] = m.ledger;
+            i++;
+        }
+        audience = newAudience;
+        audienceLedgers = newLedgers;
+    }
+
+    /**
+     * Sets the timing for songs started from now on; songs already playing keep theirs.
+     */
+    public void setTiming(TimingMode timing, LatePolicy latePolicy) {
+        this.timing = timing;
+        this.latePolicy = latePolicy;
     }
 
-    public Set<Sound> getAllPlayedSounds() {
-        return allPlayedSounds;
+    public TimingMode getTiming() {
+        return timing;
+    }
+
+    public LatePolicy getLatePolicy() {
+        return latePolicy;
+    }
+
+    /**
+     * Sets how important this channel is when the engine is over its tick budget.
+     * Songs without a priority of their own use it.
+     */
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the priority of one song in this channel, if it is playing.
+     */
+    public void setSongPriority(String songId, Priority priority) {
+        ActiveSong as = activeSongs.get(songId);
+        if (as != null) {
+            as.setPriority(priority);
+        }
     }
 
-    public Set<String> getAllPlayedStrings() {
-        return allPlayedStrings;
+    /**
+     * Called by the engine before each tick, see MultiChannelEngine.setTickBudget.
+     * @param quietVolumes per Priority, notes quieter than this are skipped; null to play all
+     * @param deferAmbient AMBIENT songs sit this tick out, see ActiveSong.defer
+     */
+    void prepare(float[] quietVolumes, boolean deferAmbient) {
+        this.quietVolumes = quietVolumes;
+        this.deferAmbient = deferAmbient;
     }
-    
 
+    /**
+     * Read-only view of the players; use addPlayer/removePlayer to change it.
+     */
     public Set<Player> getPlayers() {
-        return players;
+        return playersView;
+    }
+
+    /**
+     * The current players as an array. Don't modify it; it is shared with the songs.
+     */
+    public Player[] getAudience() {
+        return audience;
+    }
+
+    /**
+     * How many sustained (sound, category) pairs the player currently hears from this channel.
+     */
+    public int getSustainedCount(Player p) {
+        Member m = players.get(p.getUniqueId());
+        return m == null ? 0 : m.ledger.size();
     }
 
     /**
@@ -68,24 +279,70 @@ public class Channel {
      * @param songId     optional ID. If blank, auto-generate one.
      */
     public String playSong(Song song, boolean looping, String songId) {
+        songId = prepareSongId(songId);
+        return start(new ActiveSong(songId, song, looping));
+    }
+
+    /**
+     * Start playing an already compiled song in this channel, e.g. a CompiledSong or MappedSong.
+     * @param song       the compiled song
+     * @param looping    true if we want it to repeat
+     * @param songId     optional ID. If blank, auto-generate one.
+     */
+    public String playSong(SongTimeline song, boolean looping, String songId) {
+        songId = prepareSongId(songId);
+        return start(new ActiveSong(songId, song, looping));
+    }
+
+    /**
+     * Same as above; onEnd runs once the channel drops the song (it finished,
+     * was stopped or replaced, or the channel was cleared).
+     */
+    String playSong(SongTimeline song, boolean looping, String songId, Runnable onEnd) {
+        songId = prepareSongId(songId);
+        ActiveSong as = new ActiveSong(songId, song, looping);
+        as.setOnEnd(onEnd);
+        return start(as);
+    }
+
+    private String prepareSongId(String songId) {
         if (songId == null || songId.isEmpty()) {
             songId = UUID.randomUUID().toString();
         }
-        // If there's already a song with that ID, we stop and remove it
-        if (activeSongs.containsKey(songId)) {
-            activeSongs.get(songId).stop();
-            activeSongs.remove(songId);
+        // If there's already a song with that ID, we stop and remove it.
+        // It stays in songOrder for one more tick so it can stop its held notes.
+        ActiveSong previous = activeSongs.remove(songId);
+        if (previous != null) {
+            songChanging();
+            previous.stop();
         }
+        return songId;
+    }
 
-        for (Note note : song.getNotes()) {
-            if(note.getInstr()!=null){
-                allPlayedStrings.add(note.getInstr());
-            }
-            allPlayedSounds.add(note.getInstrument());
+    private String start(ActiveSong as) {
+        songChanging();
+        as.setTiming(timing, latePolicy);
+        activeSongs.put(as.getSongId(), as);
+        songOrder.add(as);
+        return as.getSongId();
+    }
+
+    /**
+     * The playing song with this ID, or null.
+     */
+    public ActiveSong getSong(String songId) {
+        return activeSongs.get(songId);
+    }
+
+    /**
+     * Jumps a song to a tick, see ActiveSong.seek.
+     */
+    public void seek(String songId, int tick) {
+        ActiveSong as = activeSongs.get(songId);
+        if (as != null) {
+            songChanging();
+            as.seek(tick);
         }
-        ActiveSong as = new ActiveSong(songId, song, looping);
-        activeSongs.put(songId, as);
-        return songId;
     }
 
     /**
@@ -94,32 +351,236 @@ public class Channel {
     public void stopSong(String songId) {
         ActiveSong as = activeSongs.get(songId);
         if (as != null) {
+            songChanging();
             as.stop();
         }
     }
 
+    /**
+     * Drops every song and player at once, e.g. when the channel is removed.
+     * Each player only gets stops for the sustained sounds they still hear.
+     */
+    public void clear() {
+        Player[] players = audience;
+        SoundLedger[] ledgers = audienceLedgers;
+        for (int i = 0; i < players.length; i++) {
+            stopsSent += ledgers[i].stopAll(players[i], output, trace, channelName);
+            if (playerIndex != null) {
+                playerIndex.left(players[i].getUniqueId(), this);
+            }
+        }
+        this.players.clear();
+        audience = NO_PLAYERS;
+        audienceLedgers = NO_LEDGERS;
+        activeSongs.clear();
+        for (int i = 0; i < songOrder.size(); i++) {
+            songOrder.get(i).ended();
+        }
+        songOrder.clear();
+    }
+
     /**
      * Called each tick by MultiSongEngine to update this channel’s songs.
      */
-  public void tick() {
-    Iterator<Map.Entry<String, ActiveSong>> it = activeSongs.entrySet().iterator();
+    public void tick() {
+        sequence(System.nanoTime());
+        dispatch();
+    }
+
+    /**
+     * Phase one of a tick: advances every song and collects the plays and
+     * stops due this tick. It only touches this channel's songs and the
+     * shared, read-only song timelines, never a Player, so the engine may
+     * run it for many channels in parallel.
+     */
+    void sequence(long now) {
+        float[] quiet = quietVolumes;
+        // Indexed loop instead of an iterator, so a steady-state tick allocates nothing
+        for (int i = 0; i < songOrder.size(); ) {
+            ActiveSong as = songOrder.get(i);
+            if (quiet != null || deferAmbient) {
+                // a song's own priority wins over the channel's, so a CUE song always plays in full
+                Priority p = as.getPriority() != null ? as.getPriority() : priority;
+                if (deferAmbient && p == Priority.AMBIENT && !as.isStopped()) {
+                    as.defer();
+                    songsDeferred++;
+                    i++;
+                    continue;
+                }
+                if (quiet != null) {
+                    events.setQuietVolume(quiet[p.ordinal()]);
+                }
+            }
 
-    while (it.hasNext()) {
-        Map.Entry<String, ActiveSong> entry = it.next();
-        ActiveSong as = entry.getValue();
+            // Tick the song and check if it's still playing;
+            // a stopped song gets one last tick to stop its held notes
+            events.setSource(as);
+            boolean stillPlaying = as.tick(events, now);
 
-        if (!as.isStopped()) {
-            // Tick the song and check if it's still playing
-            boolean stillPlaying = as.tick(new ArrayList<>(players));
+            if (stillPlaying) {
+                i++;
+            } else {
+                songOrder.remove(i); // Remove finished or stopped song immediately
+                activeSongs.remove(as.getSongId(), as);
+                as.ended();
+            }
+        }
+        events.setSource(null);
+        if (quiet != null) {
+            events.setQuietVolume(0f);
+            notesThinned += events.takeThinned();
+        }
+        findNextEvent();
+    }
 
-            if (!stillPlaying) {
-                it.remove(); // Remove finished song immediately
+    /**
+     * How far ahead the engine may skip this channel, see MultiChannelEngine's tick.
+     */
+    private void findNextEvent() {
+        int idle = MAX_IDLE_TICKS;
+        long nanos = Long.MAX_VALUE;
+        for (int i = 0; i < songOrder.size() && idle > 0; i++) {
+            ActiveSong as = songOrder.get(i);
+            if (as.getTiming() == TimingMode.WALL_CLOCK) {
+                nanos = Math.min(nanos, as.nextEventNanos(MAX_IDLE_TICKS));
+                if (nanos == Long.MIN_VALUE) {
+                    idle = 0;
+                }
+            } else {
+                idle = Math.min(idle, as.idleTicksAhead(idle));
             }
-        } else {
-            it.remove(); // Remove stopped song
         }
+        idleTicks = idle;
+        nextEventNanos = nanos;
+    }
+
+    int getIdleTicks() {
+        return idleTicks;
+    }
+
+    long getNextEventNanos() {
+        return nextEventNanos;
+    }
+
+    boolean hasSongs() {
+        return !songOrder.isEmpty();
+    }
+
+    /**
+     * Moves every song ahead over ticks the engine skipped.
+     */
+    void skip(int ticks) {
+        for (int i = 0; i < songOrder.size(); i++) {
+            songOrder.get(i).skip(ticks);
+        }
+    }
+
+    /**
+     * sequence() with its time recorded for the channel's tick time.
+     */
+    void sequenceTimed(long now) {
+        long start = System.nanoTime();
+        sequence(now);
+        sequenceNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * dispatch() with its time recorded, then publishes this tick's stats.
+     */
+    void dispatchTimed() {
+        long start = System.nanoTime();
+        dispatch();
+        lastTickNanos = sequenceNanos + (System.nanoTime() - start);
+        int held = 0;
+        for (int i = 0; i < songOrder.size(); i++) {
+            held += songOrder.get(i).getHeldCount();
+        }
+        lastHeldCount = held;
+        lastSongCount = songOrder.size();
+        lastAudienceSize = audience.length;
+    }
+
+    /**
+     * Nanoseconds the last tick of this channel took (sequencing plus dispatch).
+     * Only updated while the engine's metrics are enabled.
+     */
+    public long getLastTickNanos() {
+        return lastTickNanos;
+    }
+
+    /**
+     * Songs playing as of the last measured tick; safe to read from any thread.
+     */
+    public int getLastSongCount() {
+        return lastSongCount;
+    }
+
+    /**
+     * Sustained notes sounding as of the last measured tick; safe to read from any thread.
+     */
+    public int getLastHeldCount() {
+        return lastHeldCount;
+    }
+
+    /**
+     * Members as of the last measured tick; safe to read from any thread.
+     */
+    public int getLastAudienceSize() {
+        return lastAudienceSize;
     }
-}
 
-    
+    /**
+     * Phase two of a tick: sends what sequence() collected to the players.
+     * Runs on the engine thread.
+     */
+    void dispatch() {
+        if (!events.isEmpty()) {
+            deliver(events);
+            events.clear();
+        }
+    }
+
+    /**
+     * Sends this tick's events to every player. A held play is recorded in the
+     * player's ledger, and a stop is only sent if the ledger still has that
+     * sound in that category.
+     */
+    protected void deliver(SoundEvents events) {
+        Player[] players = audience;
+        SoundLedger[] ledgers = audienceLedgers;
+        int count = events.size();
+        EventTrace trace = this.trace;
+        if (trace != null) {
+            trace.beginDeliver(channelName, events);
+        }
+        for (int p = 0; p < players.length; p++) {
+            Player player = players[p];
+            SoundLedger ledger = ledgers[p];
+            int traced = trace == null ? -1 : trace.playerId(player);
+            for (int e = 0; e < count; e++) {
+                Instrument instrument = events.instrument(e);
+                switch (events.kind(e)) {
+                    case SoundEvents.STOP:
+                        if (!ledger.remove(instrument, events.category(e))) {
+                            continue;
+                        }
+                        output.stop(player, instrument.stopHandle(events.category(e)));
+                        stopsSent++;
+                        break;
+                    case SoundEvents.PLAY_HELD:
+                        ledger.add(instrument, events.category(e));
+                        output.play(player, events.handle(e));
+                        playsSent++;
+                        break;
+                    default:
+                        output.play(player, events.handle(e));
+                        playsSent++;
+                        break;
+                }
+                if (trace != null) {
+                    trace.sent(traced, e);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,432 @@
+package org.nc.VSE;
+
+import org.bukkit.Sound;
+import org.bukkit.SoundCategory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * An immutable, tick-indexed form of a Song.
+ *
+ * A note is stored as its start tick, end tick and the index of its Timbre
+ * (instrument, category, volume, pitch and baked sound), in the order notes
+ * were added. Timbres and instruments are interned across songs, so a
+ * loaded song costs a handful of arrays, not one object per note, and a
+ * library of songs shares the same few hundred timbres.
+ * Every note is also bucketed by the tick it starts on and the tick it
+ * stops on, so a playing song only looks at the events due on its current tick.
+ *
+ * Build one with Song.compile(). It holds no reference to the Song or its
+ * Note objects and is shared by every ActiveSong playing it. See
+ * SongTimeline for how the events are indexed.
+ */
+public final class CompiledSong implements SongTimeline {
+    static final int SEEK_STRIDE = 256; // ticks between two seek checkpoints
+    private final String title;
+    private final int tempo;
+
+    // per note
+    private final int[] startTicks;
+    private final int[] endTicks;
+    private final int[] timbreIndex;
+
+    // per distinct timbre of this song: the shared Timbre and its instrument's palette index
+    private final Timbre[] timbres;
+    private final short[] timbreInstruments;
+
+    // per palette entry
+    private final Instrument[] palette;
+    private final short[] soundSlots; // distinct Bukkit Sound of the entry, or -1
+    private final int soundSlotCount;
+
+    private final int maxEndTick;
+
+    // Events for tick t live in [offsets[t], offsets[t + 1]) of the matching note array
+    private final int[] startOffsets;
+    private final int[] startNotes;
+    private final int[] stopOffsets;
+    private final int[] stopNotes;
+
+    // Sustained notes sounding going into tick c * SEEK_STRIDE live in
+    // [soundingOffsets[c], soundingOffsets[c + 1]) of soundingNotes
+    private final int[] soundingOffsets;
+    private final int[] soundingNotes;
+
+    /**
+     * Compiles a list of notes; this is what Song.compile() uses.
+     */
+    static CompiledSong of(String title, int tempo, List<Note> source) {
+        Builder builder = new Builder(title, tempo, source.size());
+        for (Note n : source) {
+            builder.add(n.getStartTick(), n.getEndTick(), n.getPitch(), n.getVolume(), n.getCategory(),
+                    builder.addInstrument(Instrument.of(n)));
+        }
+        return builder.build();
+    }
+
+    private CompiledSong(Builder b) {
+        this.title = b.title;
+        this.tempo = b.tempo;
+
+        int count = b.size;
+        this.startTicks = Arrays.copyOf(b.startTicks, count);
+        this.endTicks = Arrays.copyOf(b.endTicks, count);
+        this.timbreIndex = Arrays.copyOf(b.timbreIndex, count);
+        this.timbres = b.timbres.toArray(new Timbre[0]);
+        this.timbreInstruments = Arrays.copyOf(b.timbreInstruments, timbres.length);
+        this.palette = b.palette.toArray(new Instrument[0]);
+
+        // (1) find the end of the song
+        int max = 0;
+        for (int i = 0; i < count; i++) {
+            max = Math.max(max, endTicks[i]);
+        }
+        this.maxEndTick = max;
+
+        // (2) give every distinct Bukkit Sound in the palette a slot
+        this.soundSlots = new short[palette.length];
+        this.soundSlotCount = assignSoundSlots(palette, soundSlots);
+
+        // (3) count events per tick
+        int ticks = maxEndTick + 1;
+        this.startOffsets = new int[ticks + 1];
+        this.stopOffsets = new int[ticks + 1];
+        for (int i = 0; i < count; i++) {
+            if (isPlayable(i)) {
+                startOffsets[startTicks[i] + 1]++;
+                if (isSustained(i)) {
+                    stopOffsets[endTicks[i] + 1]++;
+                }
+            }
+        }
+        for (int t = 0; t < ticks; t++) {
+            startOffsets[t + 1] += startOffsets[t];
+            stopOffsets[t + 1] += stopOffsets[t];
+        }
+
+        // (4) fill the buckets, keeping the song's note order inside each tick
+        this.startNotes = new int[startOffsets[ticks]];
+        this.stopNotes = new int[stopOffsets[ticks]];
+        int[] startCursor = startOffsets.clone();
+        int[] stopCursor = stopOffsets.clone();
+        for (int i = 0; i < count; i++) {
+            if (isPlayable(i)) {
+                startNotes[startCursor[startTicks[i]]++] = i;
+                if (isSustained(i)) {
+                    stopNotes[stopCursor[endTicks[i]]++] = i;
+                }
+            }
+        }
+
+        // (5) note down the sustained notes sounding at every checkpoint, for seeking
+        int checkpoints = maxEndTick / SEEK_STRIDE + 1;
+        this.soundingOffsets = new int[checkpoints + 1];
+        for (int i = 0; i < count; i++) {
+            if (isPlayable(i) && isSustained(i)) {
+                for (int c = startTicks[i] / SEEK_STRIDE + 1; c < checkpoints && c * SEEK_STRIDE < endTicks[i]; c++) {
+                    soundingOffsets[c + 1]++;
+                }
+            }
+        }
+        for (int c = 0; c < checkpoints; c++) {
+            soundingOffsets[c + 1] += soundingOffsets[c];
+        }
+        this.soundingNotes = new int[soundingOffsets[checkpoints]];
+        int[] soundingCursor = soundingOffsets.clone();
+        for (int i = 0; i < count; i++) {
+            if (isPlayable(i) && isSustained(i)) {
+                for (int c = startTicks[i] / SEEK_STRIDE + 1; c < checkpoints && c * SEEK_STRIDE < endTicks[i]; c++) {
+                    soundingNotes[soundingCursor[c]++] = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills slots with the index of each palette entry's distinct Bukkit Sound
+     * (-1 for none) and returns the number of distinct Sounds.
+     */
+    static int assignSoundSlots(Instrument[] palette, short[] slots) {
+        Map<Sound, Integer> slotBySound = new IdentityHashMap<>();
+        for (int p = 0; p < palette.length; p++) {
+            Sound s = palette[p].getSound();
+            if (s == null) {
+                slots[p] = -1;
+            } else {
+                Integer slot = slotBySound.get(s);
+                if (slot == null) {
+                    slot = slotBySound.size();
+                    slotBySound.put(s, slot);
+                }
+                slots[p] = slot.shortValue();
+            }
+        }
+        return slotBySound.size();
+    }
+
+    /**
+     * A note is only ever played if its start falls inside the song (0..maxEndTick).
+     */
+    private boolean isPlayable(int i) {
+        return startTicks[i] >= 0 && startTicks[i] <= maxEndTick;
+    }
+
+    @Override
+    public boolean isSustained(int i) {
+        return endTicks[i] > startTicks[i];
+    }
+
+    @Override
+    public String getTitle() {
+        return title;
+    }
+
+    @Override
+    public int getTempo() {
+        return tempo;
+    }
+
+    @Override
+    public int getNoteCount() {
+        return startTicks.length;
+    }
+
+    @Override
+    public int getStartTick(int i) {
+        return startTicks[i];
+    }
+
+    @Override
+    public int getEndTick(int i) {
+        return endTicks[i];
+    }
+
+    @Override
+    public float getPitch(int i) {
+        return timbres[timbreIndex[i]].getPitch();
+    }
+
+    @Override
+    public float getVolume(int i) {
+        return timbres[timbreIndex[i]].getVolume();
+    }
+
+    @Override
+    public SoundCategory getCategory(int i) {
+        return timbres[timbreIndex[i]].getCategory();
+    }
+
+    @Override
+    public int getInstrumentIndex(int i) {
+        return timbreInstruments[timbreIndex[i]];
+    }
+
+    @Override
+    public Instrument getInstrument(int i) {
+        return timbres[timbreIndex[i]].getInstrument();
+    }
+
+    /**
+     * The sound baked with the note's timbre; only other categories than the
+     * note's own (and MUSIC for MASTER notes) build a new one.
+     */
+    @Override
+    public net.kyori.adventure.sound.Sound getSoundHandle(int i, SoundCategory category) {
+        net.kyori.adventure.sound.Sound handle = timbres[timbreIndex[i]].handle(category);
+        return handle != null ? handle : SongTimeline.super.getSoundHandle(i, category);
+    }
+
+    /**
+     * Distinct timbres (instrument, category, volume, pitch) in this song.
+     */
+    public int getTimbreCount() {
+        return timbres.length;
+    }
+
+    /**
+     * Timbres and instruments are shared between songs, so only their references are counted.
+     */
+    @Override
+    public long getEstimatedBytes() {
+        return 12L * startTicks.length + 4L * (startNotes.length + stopNotes.length + soundingNotes.length)
+                + 8L * (maxEndTick + 2) + 4L * soundingOffsets.length + 10L * timbres.length + 10L * palette.length;
+    }
+
+    /**
+     * Starts from the nearest checkpoint at or before tick, so it visits at
+     * most SEEK_STRIDE ticks of events however long the song is.
+     */
+    @Override
+    public void forEachSoundingAt(int tick, IntConsumer action) {
+        if (tick <= 0) {
+            return;
+        }
+        int c = Math.min(tick, maxEndTick) / SEEK_STRIDE;
+        for (int i = soundingOffsets[c]; i < soundingOffsets[c + 1]; i++) {
+            if (endTicks[soundingNotes[i]] > tick) {
+                action.accept(soundingNotes[i]);
+            }
+        }
+        for (int t = c * SEEK_STRIDE, end = Math.min(tick, maxEndTick + 1); t < end; t++) {
+            for (int i = startOffsets[t]; i < startOffsets[t + 1]; i++) {
+                int note = startNotes[i];
+                if (endTicks[note] > tick) {
+                    action.accept(note);
+                }
+            }
+        }
+    }
+
+    @Override
+    public int getPaletteSize() {
+        return palette.length;
+    }
+
+    @Override
+    public Instrument getPaletteEntry(int paletteIndex) {
+        return palette[paletteIndex];
+    }
+
+    @Override
+    public int getMaxEndTick() {
+        return maxEndTick;
+    }
+
+    @Override
+    public int startsFrom(int tick) {
+        return startOffsets[tick];
+    }
+
+    @Override
+    public int startsTo(int tick) {
+        return startOffsets[tick + 1];
+    }
+
+    @Override
+    public int startNote(int i) {
+        return startNotes[i];
+    }
+
+    @Override
+    public int stopsFrom(int tick) {
+        return stopOffsets[tick];
+    }
+
+    @Override
+    public int stopsTo(int tick) {
+        return stopOffsets[tick + 1];
+    }
+
+    @Override
+    public int stopNote(int i) {
+        return stopNotes[i];
+    }
+
+    @Override
+    public int soundSlot(int i) {
+        return soundSlots[getInstrumentIndex(i)];
+    }
+
+    @Override
+    public int getSoundSlotCount() {
+        return soundSlotCount;
+    }
+
+    /**
+     * Builds a CompiledSong note by note straight into primitive arrays,
+     * without Note objects. Used by importers; Song.addNote is the simpler API.
+     */
+    public static final class Builder {
+        private final String title;
+        private final int tempo;
+
+        private int[] startTicks;
+        private int[] endTicks;
+        private int[] timbreIndex;
+        private int size;
+
+        private final List<Instrument> palette = new ArrayList<>();
+        private final Map<Instrument, Integer> paletteIndex = new HashMap<>();
+        private final List<Timbre> timbres = new ArrayList<>();
+        private final Map<Timbre, Integer> timbreIndexOf = new HashMap<>();
+        private short[] timbreInstruments = new short[16];
+
+        public Builder(String title, int tempo) {
+            this(title, tempo, 64);
+        }
+
+        public Builder(String title, int tempo, int expectedNotes) {
+            this.title = title;
+            this.tempo = tempo;
+            int capacity = Math.max(expectedNotes, 1);
+            this.startTicks = new int[capacity];
+            this.endTicks = new int[capacity];
+            this.timbreIndex = new int[capacity];
+        }
+
+        /**
+         * Returns the palette index of an instrument, adding it if it is new.
+         */
+        public int addInstrument(Instrument instrument) {
+            instrument = instrument.intern();
+            Integer index = paletteIndex.get(instrument);
+            if (index == null) {
+                if (palette.size() > Short.MAX_VALUE) {
+                    throw new IllegalStateException("Song '" + title + "' uses more than "
+                            + (Short.MAX_VALUE + 1) + " distinct instruments");
+                }
+                index = palette.size();
+                paletteIndex.put(instrument, index);
+                palette.add(instrument);
+            }
+            return index;
+        }
+
+        /**
+         * Adds a note; instrument is a palette index from addInstrument. Returns the note's index.
+         */
+        public int add(int startTick, int endTick, float pitch, float volume, SoundCategory category, int instrument) {
+            if (instrument < 0 || instrument >= palette.size()) {
+                throw new IllegalArgumentException("Unknown palette index " + instrument);
+            }
+            if (size == startTicks.length) {
+                int capacity = size * 2;
+                startTicks = Arrays.copyOf(startTicks, capacity);
+                endTicks = Arrays.copyOf(endTicks, capacity);
+                timbreIndex = Arrays.copyOf(timbreIndex, capacity);
+            }
+            startTicks[size] = startTick;
+            endTicks[size] = endTick;
+            timbreIndex[size] = timbreIndex(Timbre.of(palette.get(instrument), category, volume, pitch), instrument);
+            return size++;
+        }
+
+        private int timbreIndex(Timbre timbre, int instrument) {
+            Integer index = timbreIndexOf.get(timbre);
+            if (index == null) {
+                index = timbres.size();
+                timbreIndexOf.put(timbre, index);
+                timbres.add(timbre);
+                if (index == timbreInstruments.length) {
+                    timbreInstruments = Arrays.copyOf(timbreInstruments, index * 2);
+                }
+                timbreInstruments[index] = (short) instrument;
+            }
+            return index;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public CompiledSong build() {
+            return new CompiledSong(this);
+        }
+    }
+}
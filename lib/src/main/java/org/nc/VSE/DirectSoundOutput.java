@@ -0,0 +1,40 @@
+package org.nc.VSE;
+
+import net.kyori.adventure.sound.Sound;
+import net.kyori.adventure.sound.SoundStop;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+/**
+ * Sends every sound immediately on the calling thread (the main thread on Paper).
+ */
+final class DirectSoundOutput implements SoundOutput {
+    static final DirectSoundOutput INSTANCE = new DirectSoundOutput();
+
+    private DirectSoundOutput() {
+    }
+
+    /**
+     * Emitted by the player, so a held note follows them as they move.
+     */
+    @Override
+    public void play(Player p, Sound sound) {
+        p.playSound(sound, Sound.Emitter.self());
+    }
+
+    @Override
+    public void play(Player p, Location at, Sound sound) {
+        p.playSound(sound, at.getX(), at.getY(), at.getZ());
+    }
+
+    @Override
+    public void play(World world, Location at, Sound sound) {
+        world.playSound(sound, at.getX(), at.getY(), at.getZ());
+    }
+
+    @Override
+    public void stop(Player p, SoundStop stop) {
+        p.stopSound(stop);
+    }
+}
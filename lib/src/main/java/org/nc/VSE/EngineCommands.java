@@ -0,0 +1,119 @@
+package org.nc.VSE;
+
+import org.bukkit.entity.Player;
+
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Thread-safe front-end of a MultiChannelEngine, see MultiChannelEngine.commands().
+ *
+ * Any thread may call these methods. Each call only adds a command to a
+ * lock-free queue; the engine runs the queued commands in order at the start
+ * of its next tick, on its own thread. Async callbacks (matchmaking, database)
+ * can drive playback without a scheduler hop per call, and the tick itself
+ * takes no locks.
+ */
+public final class EngineCommands {
+    private final MultiChannelEngine engine;
+    private final Queue<Consumer<MultiChannelEngine>> queue = new ConcurrentLinkedQueue<>();
+
+    EngineCommands(MultiChannelEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Runs any command against the engine on its next tick.
+     */
+    public void submit(Consumer<MultiChannelEngine> command) {
+        queue.offer(command);
+        engine.wake();
+    }
+
+    /**
+     * Queues MultiChannelEngine.playSong. The song is compiled on the calling
+     * thread, and the id is chosen now so it can be returned right away.
+     */
+    public String playSong(String channelName, Song song, boolean looping, String songId) {
+        String id = resolveSongId(songId);
+        song.compile();
+        submit(e -> e.playSong(channelName, song, looping, id));
+        return id;
+    }
+
+    public String playSong(String channelName, SongTimeline song, boolean looping, String songId) {
+        String id = resolveSongId(songId);
+        submit(e -> e.playSong(channelName, song, looping, id));
+        return id;
+    }
+
+    /**
+     * Queues MultiChannelEngine.playSong for a song of the engine's SongLibrary.
+     */
+    public String playSong(String channelName, String songKey, boolean looping, String songId) {
+        String id = resolveSongId(songId);
+        submit(e -> e.playSong(channelName, songKey, looping, id));
+        return id;
+    }
+
+    public void stopSong(String channelName, String songId) {
+        submit(e -> e.stopSong(channelName, songId));
+    }
+
+    /**
+     * Queues MultiChannelEngine.seek; queued right after playSong, the song starts at tick.
+     */
+    public void seek(String channelName, String songId, int tick) {
+        submit(e -> e.seek(channelName, songId, tick));
+    }
+
+    public void addPlayerToChannel(String channelName, Player p) {
+        submit(e -> e.addPlayerToChannel(channelName, p));
+    }
+
+    public void removePlayerFromChannel(String channelName, Player p) {
+        submit(e -> e.removePlayerFromChannel(channelName, p));
+    }
+
+    public void removePlayerFromAllChannels(Player p) {
+        UUID id = p.getUniqueId();
+        submit(e -> e.removePlayerFromAllChannels(id));
+    }
+
+    public void removePlayerFromAllChannels(UUID playerId) {
+        submit(e -> e.removePlayerFromAllChannels(playerId));
+    }
+
+    public void removeChannel(String channelName) {
+        submit(e -> e.removeChannel(channelName));
+    }
+
+    private static String resolveSongId(String songId) {
+        return songId == null || songId.isEmpty() ? UUID.randomUUID().toString() : songId;
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * Runs up to max queued commands on the engine thread; returns how many ran.
+     * A failing command is logged and doesn't stop the others.
+     */
+    int drain(int max) {
+        int ran = 0;
+        Consumer<MultiChannelEngine> command;
+        while (ran < max && (command = queue.poll()) != null) {
+            ran++;
+            try {
+                command.accept(engine);
+            } catch (RuntimeException ex) {
+                engine.getPlugin().getLogger().log(Level.WARNING, "VSE command failed", ex);
+            }
+        }
+        return ran;
+    }
+}
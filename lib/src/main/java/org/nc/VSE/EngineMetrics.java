@@ -0,0 +1,303 @@
+package org.nc.VSE;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of what a MultiChannelEngine costs and does, see MultiChannelEngine.getMetrics().
+ *
+ * The engine thread feeds the counters once per tick; any thread can take a
+ * snapshot(), e.g. a Prometheus exporter polling every few seconds. Counters
+ * only go up, so rates are the difference between two snapshots (see the
+ * perSecond helpers). While disabled, the engine skips all timing.
+ */
+public final class EngineMetrics {
+    private volatile boolean enabled = true;
+
+    private final LongAdder ticks = new LongAdder();
+    private final LongAdder tickNanos = new LongAdder();
+    private final LongAccumulator maxTickNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder playsSent = new LongAdder();
+    private final LongAdder stopsSent = new LongAdder();
+    private final LongAdder stopBursts = new LongAdder();
+    private final LongAdder notesThinned = new LongAdder();
+    private final LongAdder overBudgetTicks = new LongAdder();
+    private final LongAdder deferredSongTicks = new LongAdder();
+    private final LongAdder skippedTicks = new LongAdder();
+    private volatile long lastTickNanos;
+
+    // set by the engine, so snapshots can read the channels from any thread
+    private volatile Channel[] channels = new Channel[0];
+
+    EngineMetrics() {
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns timing and counting on or off; the counters keep their values.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    void recordTick(long nanos) {
+        ticks.increment();
+        tickNanos.add(nanos);
+        maxTickNanos.accumulate(nanos);
+        lastTickNanos = nanos;
+    }
+
+    void recordSent(long plays, long stops, long thinned) {
+        playsSent.add(plays);
+        stopsSent.add(stops);
+        notesThinned.add(thinned);
+    }
+
+    void recordSkippedTick() {
+        skippedTicks.increment();
+    }
+
+    void recordOverBudget(int deferredSongs) {
+        overBudgetTicks.increment();
+        deferredSongTicks.add(deferredSongs);
+    }
+
+    void recordStopBurst() {
+        stopBursts.increment();
+    }
+
+    void setChannels(Channel[] channels) {
+        this.channels = channels;
+    }
+
+    /**
+     * Reads every counter. The longest tick is reset by each snapshot, so it is
+     * the longest tick since the previous one.
+     */
+    public Snapshot snapshot() {
+        Channel[] chs = channels;
+        List<ChannelSnapshot> perChannel = new ArrayList<>(chs.length);
+        long songs = 0;
+        long held = 0;
+        long audience = 0;
+        for (Channel ch : chs) {
+            ChannelSnapshot c = new ChannelSnapshot(ch.getChannelName(), ch.getLastTickNanos(),
+                    ch.getLastSongCount(), ch.getLastHeldCount(), ch.getLastAudienceSize());
+            perChannel.add(c);
+            songs += c.getActiveSongs();
+            held += c.getSustainedNotes();
+            audience += c.getAudienceSize();
+        }
+        return new Snapshot(System.nanoTime(), ticks.sum(), tickNanos.sum(), lastTickNanos,
+                maxTickNanos.getThenReset(), playsSent.sum(), stopsSent.sum(), stopBursts.sum(),
+                notesThinned.sum(), overBudgetTicks.sum(), deferredSongTicks.sum(), skippedTicks.sum(),
+                songs, held, audience, Collections.unmodifiableList(perChannel));
+    }
+
+    /**
+     * The engine's counters at one moment.
+     */
+    public static final class Snapshot {
+        private final long timeNanos;
+        private final long ticks;
+        private final long totalTickNanos;
+        private final long lastTickNanos;
+        private final long maxTickNanos;
+        private final long playsSent;
+        private final long stopsSent;
+        private final long stopBursts;
+        private final long notesThinned;
+        private final long overBudgetTicks;
+        private final long deferredSongTicks;
+        private final long skippedTicks;
+        private final long activeSongs;
+        private final long sustainedNotes;
+        private final long audienceSize;
+        private final List<ChannelSnapshot> channels;
+
+        Snapshot(long timeNanos, long ticks, long totalTickNanos, long lastTickNanos, long maxTickNanos,
+                 long playsSent, long stopsSent, long stopBursts, long notesThinned, long overBudgetTicks,
+                 long deferredSongTicks, long skippedTicks, long activeSongs, long sustainedNotes, long audienceSize,
+                 List<ChannelSnapshot> channels) {
+            this.timeNanos = timeNanos;
+            this.ticks = ticks;
+            this.totalTickNanos = totalTickNanos;
+            this.lastTickNanos = lastTickNanos;
+            this.maxTickNanos = maxTickNanos;
+            this.playsSent = playsSent;
+            this.stopsSent = stopsSent;
+            this.stopBursts = stopBursts;
+            this.notesThinned = notesThinned;
+            this.overBudgetTicks = overBudgetTicks;
+            this.deferredSongTicks = deferredSongTicks;
+            this.skippedTicks = skippedTicks;
+            this.activeSongs = activeSongs;
+            this.sustainedNotes = sustainedNotes;
+            this.audienceSize = audienceSize;
+            this.channels = channels;
+        }
+
+        /**
+         * System.nanoTime() when the snapshot was taken.
+         */
+        public long getTimeNanos() {
+            return timeNanos;
+        }
+
+        public long getTicks() {
+            return ticks;
+        }
+
+        /**
+         * Nanoseconds spent in engine ticks, summed over all measured ticks.
+         */
+        public long getTotalTickNanos() {
+            return totalTickNanos;
+        }
+
+        public long getLastTickNanos() {
+            return lastTickNanos;
+        }
+
+        /**
+         * The longest tick since the previous snapshot.
+         */
+        public long getMaxTickNanos() {
+            return maxTickNanos;
+        }
+
+        /**
+         * playSound calls sent to players (or worlds), in total.
+         */
+        public long getPlaysSent() {
+            return playsSent;
+        }
+
+        /**
+         * stopSound calls sent to players, in total.
+         */
+        public long getStopsSent() {
+            return stopsSent;
+        }
+
+        /**
+         * How many StopBurst JFR events the engine raised (or would have, with JFR off).
+         */
+        public long getStopBursts() {
+            return stopBursts;
+        }
+
+        /**
+         * Quiet notes skipped because the engine was over its tick budget.
+         */
+        public long getNotesThinned() {
+            return notesThinned;
+        }
+
+        /**
+         * Ticks that ran degraded because the tick before went over budget.
+         */
+        public long getOverBudgetTicks() {
+            return overBudgetTicks;
+        }
+
+        /**
+         * AMBIENT song ticks deferred to save time, summed over songs.
+         */
+        public long getDeferredSongTicks() {
+            return deferredSongTicks;
+        }
+
+        /**
+         * Ticks skipped because no song had anything to do on them; not counted in getTicks().
+         */
+        public long getSkippedTicks() {
+            return skippedTicks;
+        }
+
+        public long getActiveSongs() {
+            return activeSongs;
+        }
+
+        public long getSustainedNotes() {
+            return sustainedNotes;
+        }
+
+        /**
+         * Channel memberships summed over all channels.
+         */
+        public long getAudienceSize() {
+            return audienceSize;
+        }
+
+        public List<ChannelSnapshot> getChannels() {
+            return channels;
+        }
+
+        public double playsSentPerSecond(Snapshot earlier) {
+            return perSecond(playsSent - earlier.playsSent, earlier);
+        }
+
+        public double stopsSentPerSecond(Snapshot earlier) {
+            return perSecond(stopsSent - earlier.stopsSent, earlier);
+        }
+
+        /**
+         * Average engine tick time between two snapshots.
+         */
+        public double averageTickNanos(Snapshot earlier) {
+            long n = ticks - earlier.ticks;
+            return n == 0 ? 0 : (double) (totalTickNanos - earlier.totalTickNanos) / n;
+        }
+
+        private double perSecond(long delta, Snapshot earlier) {
+            long nanos = timeNanos - earlier.timeNanos;
+            return nanos <= 0 ? 0 : delta * 1_000_000_000.0 / nanos;
+        }
+    }
+
+    /**
+     * One channel as of its last measured tick.
+     */
+    public static final class ChannelSnapshot {
+        private final String name;
+        private final long lastTickNanos;
+        private final int activeSongs;
+        private final int sustainedNotes;
+        private final int audienceSize;
+
+        ChannelSnapshot(String name, long lastTickNanos, int activeSongs, int sustainedNotes, int audienceSize) {
+            this.name = name;
+            this.lastTickNanos = lastTickNanos;
+            this.activeSongs = activeSongs;
+            this.sustainedNotes = sustainedNotes;
+            this.audienceSize = audienceSize;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLastTickNanos() {
+            return lastTickNanos;
+        }
+
+        public int getActiveSongs() {
+            return activeSongs;
+        }
+
+        public int getSustainedNotes() {
+            return sustainedNotes;
+        }
+
+        public int getAudienceSize() {
+            return audienceSize;
+        }
+    }
+}
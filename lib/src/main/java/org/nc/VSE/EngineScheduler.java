@@ -0,0 +1,55 @@
+package org.nc.VSE;
+
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Drives the engine tick and decides where its sounds are sent.
+ *
+ * PaperEngineScheduler runs everything on the main thread.
+ * RegionEngineScheduler runs the tick on Folia's global region and delivers
+ * each player's sounds on the thread of the region that owns that player.
+ */
+public interface EngineScheduler {
+
+    /**
+     * Runs tick once every server tick until stop() is called. Does nothing if
+     * already running. start and stop may be called from any thread.
+     */
+    void start(Runnable tick);
+
+    void stop();
+
+    boolean isRunning();
+
+    /**
+     * The output channels of this engine should send their sounds to.
+     */
+    SoundOutput getOutput();
+
+    /**
+     * Whether the tick may read Player state such as a player's location.
+     * Positional channels need it, so the engine refuses them where it can't.
+     */
+    default boolean canReadPlayers() {
+        return true;
+    }
+
+    /**
+     * Picks the region backend on Folia and the main-thread backend otherwise.
+     */
+    static EngineScheduler forServer(Plugin plugin) {
+        if (isFolia()) {
+            return new RegionEngineScheduler(plugin);
+        }
+        return new PaperEngineScheduler(plugin);
+    }
+
+    private static boolean isFolia() {
+        try {
+            Class.forName("io.papermc.paper.threadedregions.RegionizedServer");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package org.nc.VSE;
+
+import net.kyori.adventure.key.Key;
+import org.bukkit.SoundCategory;
+import org.bukkit.entity.Player;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A binary log of every play and stop the engine sends, to find out later
+ * what a player actually heard (see EventTraceReader). Turn it on with
+ * MultiChannelEngine.setTrace.
+ *
+ * The engine thread writes fixed-size records into a preallocated ring and
+ * publishes them once per tick; a background thread copies them into a
+ * memory-mapped file every flush period. Recording allocates nothing,
+ * except the first time a channel, song, player or sound is seen. If the
+ * ring fills up before a flush, records are dropped and counted, never waited for.
+ *
+ * The file is a circular log of a fixed number of records, so it keeps the
+ * latest ones. All values are little-endian:
+ *
+ * <pre>
+ * header   int magic "VSET", int version, int recordSize, int capacity,
+ *          long written, long dropped, long startMillis, (padding to 64 bytes)
+ * records  capacity * 24 bytes; record n (counting from 0) is in slot n % capacity:
+ *          int tick, int channel, int song, int player, int sound,
+ *          u8 kind (SoundEvents.PLAY / PLAY_HELD / STOP), u8 category, u16 0
+ * </pre>
+ *
+ * Channels, songs, players and sounds are numbered in order of appearance;
+ * their names are appended to a text file next to it (file + ".names"), one
+ * "kind id name" line each. -1 means none: no song for stops sent when a
+ * player leaves, no player for sounds played to a whole world, no channel
+ * for personal songs.
+ */
+public final class EventTrace implements AutoCloseable {
+    static final int MAGIC = 0x54455356; // "VSET" read little-endian
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 24;
+    static final int WRITTEN_AT = 16;
+    static final int DROPPED_AT = 24;
+
+    public static final int DEFAULT_CAPACITY = 1 << 22; // records in the file, 96 MiB
+    public static final int DEFAULT_RING = 1 << 16;     // records between flushes, 1.5 MiB
+    public static final long DEFAULT_FLUSH_MILLIS = 250;
+
+    private final Path file;
+    private final int capacity;
+    private final ByteBuffer ring;
+    private final int ringCapacity;
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    private final BufferedWriter names;
+    private final ScheduledExecutorService flusher;
+
+    // engine thread
+    private int tick;
+    private long writeSeq;      // records written to the ring
+    private long flushedCache;  // last seen value of flushedSeq
+    private long droppedCount;
+    private final Map<String, Integer> channelIds = new HashMap<>();
+    private final Map<UUID, Integer> playerIds = new HashMap<>();
+    private final Map<Key, Integer> soundIds = new HashMap<>();
+    private int songCount;
+    private final ConcurrentLinkedQueue<String> newNames = new ConcurrentLinkedQueue<>();
+
+    // the batch being delivered, see beginDeliver
+    private int batchChannel;
+    private SoundEvents batch;
+    private int[] batchSongs = new int[16];
+    private int[] batchSounds = new int[16];
+
+    // shared with the flusher
+    private volatile long publishedSeq;
+    private volatile long flushedSeq;
+    private volatile long dropped;
+
+    // flusher thread
+    private long written;
+    private volatile Logger logger = Logger.getLogger(EventTrace.class.getName());
+    private boolean flushFailed; // logged once, until a flush works again
+
+    public EventTrace(Path file) throws IOException {
+        this(file, DEFAULT_CAPACITY, DEFAULT_RING, DEFAULT_FLUSH_MILLIS);
+    }
+
+    /**
+     * Creates (or overwrites) the trace file and starts flushing.
+     *
+     * @param capacity    records kept in the file; older ones are overwritten
+     * @param ringRecords records held in memory until the next flush
+     */
+    public EventTrace(Path file, int capacity, int ringRecords, long flushMillis) throws IOException {
+        if (capacity <= 0 || ringRecords <= 0 || flushMillis <= 0) {
+            throw new IllegalArgumentException("capacity, ringRecords and flushMillis must be positive");
+        }
+        if (capacity > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE || ringRecords > Integer.MAX_VALUE / RECORD_SIZE) {
+            throw new IllegalArgumentException("trace files are limited to 2 GiB");
+        }
+        this.file = file;
+        this.capacity = capacity;
+        this.ringCapacity = ringRecords;
+        this.ring = ByteBuffer.allocateDirect(ringRecords * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        mapped.putInt(0, MAGIC);
+        mapped.putInt(4, VERSION);
+        mapped.putInt(8, RECORD_SIZE);
+        mapped.putInt(12, capacity);
+        mapped.putLong(32, System.currentTimeMillis());
+        this.names = Files.newBufferedWriter(namesFile(file), StandardCharsets.UTF_8);
+
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "VSE-trace");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static Path namesFile(Path file) {
+        return file.resolveSibling(file.getFileName() + ".names");
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Where a failed flush is reported; MultiChannelEngine.setTrace sets the plugin's logger.
+     */
+    void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Records lost because the ring was full; raise ringRecords or lower flushMillis if this grows.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Writes what is left and closes the file. Detach it from the engine first.
+     */
+    @Override
+    public void close() throws IOException {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        mapped.force();
+        names.close();
+        channel.close();
+    }
+
+    // ---- engine thread ----
+
+    void beginTick(int tick) {
+        this.tick = tick;
+    }
+
+    /**
+     * Makes this tick's records visible to the flusher.
+     */
+    void publish() {
+        if (publishedSeq != writeSeq) {
+            publishedSeq = writeSeq;
+        }
+    }
+
+    /**
+     * Starts delivering a batch of events; sent(..) then refers to them by index.
+     * channel is null for personal songs.
+     */
+    void beginDeliver(String channel, SoundEvents events) {
+        int count = events.size();
+        if (batchSongs.length < count) {
+            batchSongs = new int[Math.max(count, batchSongs.length * 2)];
+            batchSounds = new int[batchSongs.length];
+        }
+        batchChannel = channelId(channel);
+        batch = events;
+        for (int e = 0; e < count; e++) {
+            batchSongs[e] = songId(events.source(e));
+            batchSounds[e] = soundId(events.instrument(e));
+        }
+    }
+
+    /**
+     * Event e of the batch was sent to a player (see playerId), or to a whole world (-1).
+     */
+    void sent(int player, int e) {
+        write(batchChannel, batchSongs[e], player, batchSounds[e], batch.kind(e), batch.category(e));
+    }
+
+    /**
+     * A stop sent outside a batch, e.g. when a player leaves a channel.
+     */
+    void stopSent(String channel, Player player, Instrument instrument, SoundCategory category) {
+        write(channelId(channel), -1, playerId(player), soundId(instrument), SoundEvents.STOP, category);
+    }
+
+    int playerId(Player player) {
+        UUID id = player.getUniqueId();
+        Integer n = playerIds.get(id);
+        if (n == null) {
+            n = playerIds.size();
+            playerIds.put(id, n);
+            newNames.add("p " + n + " " + id);
+        }
+        return n;
+    }
+
+    private int channelId(String name) {
+        if (name == null) {
+            return -1;
+        }
+        Integer n = channelIds.get(name);
+        if (n == null) {
+            n = channelIds.size();
+            channelIds.put(name, n);
+            newNames.add("c " + n + " " + name);
+        }
+        return n;
+    }
+
+    private int songId(ActiveSong song) {
+        if (song == null) {
+            return -1;
+        }
+        if (song.tracedBy != this) {
+            song.tracedBy = this;
+            song.traceId = songCount++;
+            newNames.add("s " + song.traceId + " " + song.getSongId());
+        }
+        return song.traceId;
+    }
+
+    private int soundId(Instrument instrument) {
+        Key key = instrument.getSoundKey();
+        Integer n = soundIds.get(key);
+        if (n == null) {
+            n = soundIds.size();
+            soundIds.put(key, n);
+            newNames.add("k " + n + " " + key.asString());
+        }
+        return n;
+    }
+
+    private void write(int channel, int song, int player, int sound, byte kind, SoundCategory category) {
+        if (writeSeq - flushedCache >= ringCapacity) {
+            flushedCache = flushedSeq;
+            if (writeSeq - flushedCache >= ringCapacity) {
+                dropped = ++droppedCount;
+                return;
+            }
+        }
+        int at = (int) (writeSeq % ringCapacity) * RECORD_SIZE;
+        ring.putInt(at, tick);
+        ring.putInt(at + 4, channel);
+        ring.putInt(at + 8, song);
+        ring.putInt(at + 12, player);
+        ring.putInt(at + 16, sound);
+        ring.put(at + 20, kind);
+        ring.put(at + 21, (byte) category.ordinal());
+        ring.putShort(at + 22, (short) 0);
+        writeSeq++;
+    }
+
+    // ---- flusher thread ----
+
+    /**
+     * A scheduled flush. Nothing may escape it, or the executor would cancel
+     * every later flush; a failure is logged once and the next flush tries again.
+     */
+    private void flushQuietly() {
+        try {
+            flush();
+            flushFailed = false;
+        } catch (IOException | RuntimeException e) {
+            if (!flushFailed) {
+                flushFailed = true;
+                logger.log(Level.WARNING, "Couldn't write the event trace " + file + ", will keep trying", e);
+            }
+        }
+    }
+
+    /**
+     * Copies the published records into the file, names first so every id in it has its name.
+     */
+    private synchronized void flush() throws IOException {
+        long end = publishedSeq;
+        String name;
+        while ((name = newNames.poll()) != null) {
+            names.write(name);
+            names.newLine();
+        }
+        names.flush();
+
+        long seq = flushedSeq;
+        while (seq < end) {
+            int from = (int) (seq % ringCapacity);
+            int to = (int) (written % capacity);
+            int n = (int) Math.min(end - seq, Math.min(ringCapacity - from, capacity - to));
+            mapped.put(HEADER_SIZE + to * RECORD_SIZE, ring, from * RECORD_SIZE, n * RECORD_SIZE);
+            seq += n;
+            written += n;
+        }
+        mapped.putLong(WRITTEN_AT, written);
+        mapped.putLong(DROPPED_AT, dropped);
+        flushedSeq = end;
+    }
+}
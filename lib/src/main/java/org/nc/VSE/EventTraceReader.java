@@ -0,0 +1,240 @@
+package org.nc.VSE;
+
+import org.bukkit.SoundCategory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Reads a file written by EventTrace, oldest record first, and replays it to
+ * tell what a player was hearing.
+ *
+ * From the command line, prints every record and then the sustained sounds
+ * each player was still hearing at the end of the trace:
+ * <pre>java -cp VSE.jar:paper-api.jar org.nc.VSE.EventTraceReader trace.vset</pre>
+ */
+public final class EventTraceReader {
+    private static final SoundCategory[] CATEGORIES = SoundCategory.values();
+
+    private final ByteBuffer data;
+    private final int capacity;
+    private final long written;
+    private final long dropped;
+    private final long startMillis;
+    private final int size;
+    private final Map<Integer, String> channels = new HashMap<>();
+    private final Map<Integer, String> songs = new HashMap<>();
+    private final Map<Integer, UUID> players = new HashMap<>();
+    private final Map<Integer, String> sounds = new HashMap<>();
+
+    private EventTraceReader(ByteBuffer data, List<String> names) throws IOException {
+        this.data = data.order(ByteOrder.LITTLE_ENDIAN);
+        if (data.limit() < EventTrace.HEADER_SIZE || data.getInt(0) != EventTrace.MAGIC) {
+            throw new IOException("Not a VSE trace file");
+        }
+        if (data.getInt(4) != EventTrace.VERSION || data.getInt(8) != EventTrace.RECORD_SIZE) {
+            throw new IOException("Unsupported VSE trace file version " + data.getInt(4));
+        }
+        this.capacity = data.getInt(12);
+        this.written = data.getLong(EventTrace.WRITTEN_AT);
+        this.dropped = data.getLong(EventTrace.DROPPED_AT);
+        this.startMillis = data.getLong(32);
+        if (capacity <= 0 || data.limit() < EventTrace.HEADER_SIZE + (long) capacity * EventTrace.RECORD_SIZE) {
+            throw new IOException("Truncated or corrupt VSE trace file");
+        }
+        this.size = (int) Math.min(written, capacity);
+
+        for (String line : names) {
+            String[] parts = line.split(" ", 3);
+            if (parts.length < 3) continue;
+            int id = Integer.parseInt(parts[1]);
+            switch (parts[0]) {
+                case "c": channels.put(id, parts[2]); break;
+                case "s": songs.put(id, parts[2]); break;
+                case "p": players.put(id, UUID.fromString(parts[2])); break;
+                case "k": sounds.put(id, parts[2]); break;
+                default: break;
+            }
+        }
+    }
+
+    /**
+     * Opens a trace and the names file next to it.
+     */
+    public static EventTraceReader open(Path file) throws IOException {
+        List<String> names = Files.readAllLines(EventTrace.namesFile(file), StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new EventTraceReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), names);
+        }
+    }
+
+    /**
+     * Records in the file; fewer than getWritten() once the oldest were overwritten.
+     */
+    public int size() {
+        return size;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * Records the engine dropped because the trace couldn't keep up.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * System.currentTimeMillis() when the trace was opened.
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * Record i, counting from the oldest one still in the file.
+     */
+    public Record get(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException(i);
+        }
+        long seq = written - size + i;
+        int at = EventTrace.HEADER_SIZE + (int) (seq % capacity) * EventTrace.RECORD_SIZE;
+        return new Record(data.getInt(at), data.get(at + 20), CATEGORIES[data.get(at + 21)],
+                channels.get(data.getInt(at + 4)), songs.get(data.getInt(at + 8)),
+                players.get(data.getInt(at + 12)), sounds.get(data.getInt(at + 16)));
+    }
+
+    /**
+     * Replays the player's records up to and including tick, and returns the
+     * sustained sounds ("category sound") the player was hearing after it.
+     * Past the end of the player's songs, anything left is a stuck note.
+     */
+    public Set<String> heldAt(UUID player, int tick) {
+        Set<String> held = new LinkedHashSet<>();
+        for (int i = 0; i < size; i++) {
+            Record r = get(i);
+            if (r.getTick() > tick) {
+                break;
+            }
+            if (!player.equals(r.getPlayer())) {
+                continue;
+            }
+            String sound = r.getCategory() + " " + r.getSound();
+            if (r.getKind() == SoundEvents.PLAY_HELD) {
+                held.add(sound);
+            } else if (r.getKind() == SoundEvents.STOP) {
+                held.remove(sound);
+            }
+        }
+        return held;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: EventTraceReader <trace file>");
+            return;
+        }
+        EventTraceReader trace = open(Path.of(args[0]));
+        System.out.println(trace.size() + " records of " + trace.getWritten() + ", " + trace.getDropped()
+                + " dropped");
+        Set<UUID> seen = new LinkedHashSet<>();
+        for (int i = 0; i < trace.size(); i++) {
+            Record r = trace.get(i);
+            System.out.println(r);
+            if (r.getPlayer() != null) {
+                seen.add(r.getPlayer());
+            }
+        }
+        for (UUID player : seen) {
+            Set<String> held = trace.heldAt(player, Integer.MAX_VALUE);
+            if (!held.isEmpty()) {
+                System.out.println("still held by " + player + ": " + held);
+            }
+        }
+    }
+
+    /**
+     * One play or stop as sent. Channel, song and player are null where the
+     * record has none (see EventTrace).
+     */
+    public static final class Record {
+        private final int tick;
+        private final byte kind;
+        private final SoundCategory category;
+        private final String channel;
+        private final String songId;
+        private final UUID player;
+        private final String sound;
+
+        Record(int tick, byte kind, SoundCategory category, String channel, String songId, UUID player,
+               String sound) {
+            this.tick = tick;
+            this.kind = kind;
+            this.category = category;
+            this.channel = channel;
+            this.songId = songId;
+            this.player = player;
+            this.sound = sound;
+        }
+
+        /**
+         * Engine tick the record was sent in, counting skipped ticks.
+         */
+        public int getTick() {
+            return tick;
+        }
+
+        /**
+         * SoundEvents.PLAY, PLAY_HELD or STOP.
+         */
+        public byte getKind() {
+            return kind;
+        }
+
+        public SoundCategory getCategory() {
+            return category;
+        }
+
+        public String getChannel() {
+            return channel;
+        }
+
+        public String getSongId() {
+            return songId;
+        }
+
+        public UUID getPlayer() {
+            return player;
+        }
+
+        /**
+         * The sound's key, e.g. minecraft:block.note_block.harp.
+         */
+        public String getSound() {
+            return sound;
+        }
+
+        @Override
+        public String toString() {
+            String what = kind == SoundEvents.STOP ? "stop" : kind == SoundEvents.PLAY_HELD ? "hold" : "play";
+            return tick + " " + what + " " + category + " " + sound + " channel=" + channel + " song=" + songId
+                    + " player=" + (player == null ? "world" : player);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package org.nc.VSE;
+
+import net.kyori.adventure.key.Key;
+import net.kyori.adventure.sound.SoundStop;
+import org.bukkit.Location;
+import org.bukkit.Sound;
+import org.bukkit.SoundCategory;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.lang.ref.WeakReference;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+
+/**
+ * One entry of a song's instrument palette.
+ *
+ * A note is played either as a Bukkit Sound or, if it has one, as a custom
+ * sound key string (resource pack sounds). The Sound is still kept for
+ * string notes because the MASTER fallback logic groups notes by Sound.
+ *
+ * The sound's Adventure Key is resolved once, here; handle() and
+ * stopHandle() build the Adventure sounds the engine actually sends.
+ *
+ * Songs get their instruments from of(), which interns them: every song
+ * playing the same sound shares one Instrument, with its key and stops.
+ * Instruments no song uses any more are dropped from the table by the GC.
+ */
+public final class Instrument {
+    private static final SoundCategory[] CATEGORIES = SoundCategory.values();
+    private static final Map<Instrument, WeakReference<Instrument>> INTERNED = new WeakHashMap<>();
+
+    private final Sound sound;
+    private final String key;
+    private final Key soundKey;
+    private final SoundStop[] stops = new SoundStop[CATEGORIES.length]; // per category, made on first use
+
+    /**
+     * A key with capitals, as older songs have, is played in lower case.
+     *
+     * @throws IllegalArgumentException if there is neither a sound nor a key, or key isn't a valid sound key
+     */
+    public Instrument(Sound sound, String key) {
+        this.sound = sound;
+        this.key = key;
+        this.soundKey = soundKey(sound, key);
+    }
+
+    /**
+     * The key an instrument of this Sound and custom key plays; Note calls it
+     * to check its instrument when it is created.
+     *
+     * @throws IllegalArgumentException if there is neither a sound nor a key, or key isn't a valid sound key
+     */
+    static Key soundKey(Sound sound, String key) {
+        if (key == null) {
+            if (sound == null) {
+                throw new IllegalArgumentException("An instrument needs a Sound or a custom sound key");
+            }
+            return sound.key();
+        }
+        if (Key.parseable(key)) {
+            return Key.key(key);
+        }
+        String lower = key.toLowerCase(Locale.ROOT);
+        if (Key.parseable(lower)) {
+            return Key.key(lower);
+        }
+        throw new IllegalArgumentException("'" + key + "' is not a valid sound key (namespace:path, "
+                + "with only a-z, 0-9 and _ - . in it, and / in the path)");
+    }
+
+    public static Instrument of(Note note) {
+        return of(note.getInstrument(), note.getInstr());
+    }
+
+    /**
+     * The shared instrument for this Sound and custom key.
+     *
+     * @throws IllegalArgumentException if key isn't a valid sound key
+     */
+    public static Instrument of(Sound sound, String key) {
+        return new Instrument(sound, key).intern();
+    }
+
+    /**
+     * The shared instrument equal to this one.
+     */
+    Instrument intern() {
+        synchronized (INTERNED) {
+            WeakReference<Instrument> ref = INTERNED.get(this);
+            Instrument shared = ref == null ? null : ref.get();
+            if (shared == null) {
+                INTERNED.put(this, new WeakReference<>(this));
+                shared = this;
+            }
+            return shared;
+        }
+    }
+
+    public Sound getSound() {
+        return sound;
+    }
+
+    /**
+     * The custom sound key, or null if this instrument plays its Sound.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public boolean isCustom() {
+        return key != null;
+    }
+
+    /**
+     * The key of the sound actually played: the custom key, or the Sound's key.
+     */
+    public Key getSoundKey() {
+        return soundKey;
+    }
+
+    /**
+     * An immutable Adventure sound of this instrument. Build these ahead of time
+     * (CompiledSong does, per note) and reuse them for every play.
+     */
+    public net.kyori.adventure.sound.Sound handle(SoundCategory category, float volume, float pitch) {
+        return net.kyori.adventure.sound.Sound.sound(soundKey, category.soundSource(), volume, pitch);
+    }
+
+    /**
+     * The stop for this instrument in category, made once and then shared.
+     */
+    public SoundStop stopHandle(SoundCategory category) {
+        SoundStop stop = stops[category.ordinal()];
+        if (stop == null) {
+            // a race only makes an equal SoundStop twice
+            stop = SoundStop.namedOnSource(soundKey, category.soundSource());
+            stops[category.ordinal()] = stop;
+        }
+        return stop;
+    }
+
+    /**
+     * Plays this instrument to one player, on the player entity so no Location is copied.
+     */
+    public void play(Player p, SoundCategory category, float volume, float pitch) {
+        if (key != null) {
+            p.playSound(p, key, category, volume, pitch);
+        } else {
+            p.playSound(p, sound, category, volume, pitch);
+        }
+    }
+
+    /**
+     * Plays this instrument to one player from a fixed position.
+     */
+    public void play(Player p, Location at, SoundCategory category, float volume, float pitch) {
+        if (key != null) {
+            p.playSound(at, key, category, volume, pitch);
+        } else {
+            p.playSound(at, sound, category, volume, pitch);
+        }
+    }
+
+    /**
+     * Plays this instrument once at a position, for everyone in the world who can hear it.
+     */
+    public void play(World world, Location at, SoundCategory category, float volume, float pitch) {
+        if (key != null) {
+            world.playSound(at, key, category, volume, pitch);
+        } else {
+            world.playSound(at, sound, category, volume, pitch);
+        }
+    }
+
+    public void stop(Player p, SoundCategory category) {
+        if (key != null) {
+            p.stopSound(key, category);
+        } else {
+            p.stopSound(sound, category);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Instrument)) return false;
+        Instrument other = (Instrument) o;
+        return sound == other.sound && Objects.equals(key, other.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * System.identityHashCode(sound) + Objects.hashCode(key);
+    }
+}
@@ -0,0 +1,19 @@
+package org.nc.VSE;
+
+/**
+ * What a song does with notes whose tick is already overdue when it catches
+ * up: a WALL_CLOCK song behind the clock, or a song whose tick the engine
+ * deferred (see Priority.AMBIENT). Stops are always processed; this only
+ * affects starts.
+ */
+public enum LatePolicy {
+    /** Play every overdue note. */
+    CATCH_UP,
+    /** Skip overdue notes; only the notes of the tick that is due now play. */
+    DROP,
+    /**
+     * Play each instrument at most once for all its overdue notes, and skip
+     * overdue held notes that would already have ended.
+     */
+    COLLAPSE
+}
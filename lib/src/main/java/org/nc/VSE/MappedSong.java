@@ -0,0 +1,376 @@
+package org.nc.VSE;
+
+import org.bukkit.NamespacedKey;
+import org.bukkit.Registry;
+import org.bukkit.Sound;
+import org.bukkit.SoundCategory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.function.IntConsumer;
+
+/**
+ * A song played straight from a song file in memory, usually mapped with
+ * SongFormat.load.
+ *
+ * Only the header and the instrument palette are decoded when it is opened;
+ * the tick index and the notes are read from the buffer while the song
+ * plays. Opening only checks that the header fits the file, so it doesn't
+ * touch the rest of the mapping; SongFormat.verify checks every note. A bad
+ * palette index or category met during playback throws IllegalStateException.
+ * Pitch and volume come back quantized, see SongFormat. The file has no seek
+ * checkpoints, so they are built in one pass over the song on the first seek.
+ */
+public final class MappedSong implements SongTimeline {
+    private static final SoundCategory[] CATEGORIES = SoundCategory.values();
+
+    private final ByteBuffer data; // only read with absolute gets, so it can be shared by threads
+    private final String title;
+    private final int tempo;
+    private final int maxEndTick;
+    private final int noteCount;
+
+    private final Instrument[] palette;
+    private final short[] soundSlots;
+    private final int soundSlotCount;
+
+    private final int startIndexAt;
+    private final int stopIndexAt;
+    private final int stopNotesAt;
+    private final int notesAt;
+
+    private final TimbreCache timbres = new TimbreCache();
+    private volatile SeekIndex seekIndex; // built on the first seek, a race only builds it twice
+
+    MappedSong(ByteBuffer buffer) throws IOException {
+        this.data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() < SongFormat.HEADER_SIZE || data.getInt(0) != SongFormat.MAGIC) {
+            throw new IOException("Not a VSE song file");
+        }
+        int version = data.getShort(4) & 0xFFFF;
+        if (version != SongFormat.VERSION) {
+            throw new IOException("Unsupported VSE song file version " + version);
+        }
+        this.tempo = data.getInt(8);
+        this.maxEndTick = data.getInt(12);
+        this.noteCount = data.getInt(16);
+        int stopCount = data.getInt(20);
+        int paletteSize = data.getInt(24);
+        int dataOffset = data.getInt(28);
+
+        if (maxEndTick < 0 || noteCount < 0 || stopCount < 0 || paletteSize < 0 || paletteSize > 0x10000
+                || dataOffset < SongFormat.HEADER_SIZE || dataOffset > data.capacity()) {
+            throw new IOException("Corrupt VSE song file header");
+        }
+        // in long, so huge counts in a corrupt header can't wrap around
+        long stopIndexAt = dataOffset + 4L * (maxEndTick + 2L);
+        long stopNotesAt = stopIndexAt + 4L * (maxEndTick + 2L);
+        long notesAt = stopNotesAt + 4L * stopCount;
+        if (notesAt + (long) SongFormat.NOTE_SIZE * noteCount > data.capacity()) {
+            throw new IOException("Truncated VSE song file");
+        }
+        this.startIndexAt = dataOffset;
+        this.stopIndexAt = (int) stopIndexAt;
+        this.stopNotesAt = (int) stopNotesAt;
+        this.notesAt = (int) notesAt;
+
+        ByteBuffer strings = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        strings.position(SongFormat.HEADER_SIZE).limit(dataOffset);
+        try {
+            this.title = readString(strings);
+            this.palette = new Instrument[paletteSize];
+            for (int p = 0; p < paletteSize; p++) {
+                int flags = strings.get();
+                String soundKey = (flags & SongFormat.HAS_SOUND) != 0 ? readString(strings) : null;
+                String customKey = (flags & SongFormat.HAS_KEY) != 0 ? readString(strings) : null;
+                Sound sound = soundKey == null ? null : Registry.SOUNDS.get(NamespacedKey.fromString(soundKey));
+                if (sound == null && customKey == null) {
+                    // a Sound this server doesn't know, e.g. from a newer version: play it by key
+                    customKey = soundKey;
+                }
+                palette[p] = Instrument.of(sound, customKey);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt VSE song file header", e);
+        }
+        if (startsFrom(0) != 0 || startsTo(maxEndTick) != noteCount
+                || stopsFrom(0) != 0 || stopsTo(maxEndTick) != stopCount) {
+            throw new IOException("Corrupt VSE song file: index doesn't match the note counts");
+        }
+        this.soundSlots = new short[paletteSize];
+        this.soundSlotCount = CompiledSong.assignSoundSlots(palette, soundSlots);
+    }
+
+    /**
+     * Checks the indexes and every note record, see SongFormat.verify.
+     */
+    void verify() throws IOException {
+        int stopCount = stopsTo(maxEndTick);
+        for (int t = 0; t <= maxEndTick; t++) {
+            int from = startsFrom(t);
+            int to = startsTo(t);
+            if (to < from || to > noteCount || stopsTo(t) < stopsFrom(t) || stopsTo(t) > stopCount) {
+                throw new IOException("Corrupt VSE song file: bad index at tick " + t);
+            }
+            for (int i = from; i < to; i++) {
+                int packed = packed(i);
+                int index = data.getShort(notesAt + i * SongFormat.NOTE_SIZE) & 0xFFFF;
+                if (index >= palette.length || (packed >>> 28) >= CATEGORIES.length
+                        || t + (packed & SongFormat.MAX_DURATION) > maxEndTick) {
+                    throw new IOException("Corrupt VSE song file: bad note " + i);
+                }
+            }
+        }
+        for (int i = 0; i < stopCount; i++) {
+            int note = stopNote(i);
+            if (note < 0 || note >= noteCount) {
+                throw new IOException("Corrupt VSE song file: bad stop note " + note);
+            }
+        }
+    }
+
+    /**
+     * Sustained notes sounding going into tick c * CompiledSong.SEEK_STRIDE,
+     * with their end ticks, live in [offsets[c], offsets[c + 1]) of notes and ends.
+     */
+    private static final class SeekIndex {
+        final int[] offsets;
+        final int[] notes;
+        final int[] ends;
+
+        SeekIndex(int[] offsets, int[] notes, int[] ends) {
+            this.offsets = offsets;
+            this.notes = notes;
+            this.ends = ends;
+        }
+    }
+
+    private SeekIndex buildSeekIndex() {
+        int stride = CompiledSong.SEEK_STRIDE;
+        int checkpoints = maxEndTick / stride + 1;
+        int[] offsets = new int[checkpoints + 1];
+        // Count first, then fill, like CompiledSong
+        for (int t = 0; t <= maxEndTick; t++) {
+            for (int i = startsFrom(t), to = startsTo(t); i < to; i++) {
+                int end = t + duration(i);
+                for (int c = t / stride + 1; c < checkpoints && c * stride < end; c++) {
+                    offsets[c + 1]++;
+                }
+            }
+        }
+        for (int c = 0; c < checkpoints; c++) {
+            offsets[c + 1] += offsets[c];
+        }
+        int[] notes = new int[offsets[checkpoints]];
+        int[] ends = new int[notes.length];
+        int[] fill = offsets.clone();
+        for (int t = 0; t <= maxEndTick; t++) {
+            for (int i = startsFrom(t), to = startsTo(t); i < to; i++) {
+                int end = t + duration(i);
+                for (int c = t / stride + 1; c < checkpoints && c * stride < end; c++) {
+                    notes[fill[c]] = i;
+                    ends[fill[c]++] = end;
+                }
+            }
+        }
+        return new SeekIndex(offsets, notes, ends);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int packed(int i) {
+        return data.getInt(notesAt + i * SongFormat.NOTE_SIZE + 4);
+    }
+
+    private int duration(int i) {
+        return packed(i) & SongFormat.MAX_DURATION;
+    }
+
+    @Override
+    public String getTitle() {
+        return title;
+    }
+
+    @Override
+    public int getTempo() {
+        return tempo;
+    }
+
+    @Override
+    public int getNoteCount() {
+        return noteCount;
+    }
+
+    /**
+     * Notes are stored in start order, so this is a binary search of the start index.
+     */
+    @Override
+    public int getStartTick(int i) {
+        int lo = 0;
+        int hi = maxEndTick;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (startsFrom(mid) <= i) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    @Override
+    public int getEndTick(int i) {
+        return getStartTick(i) + duration(i);
+    }
+
+    @Override
+    public boolean isSustained(int i) {
+        return duration(i) > 0;
+    }
+
+    @Override
+    public float getPitch(int i) {
+        return (data.getShort(notesAt + i * SongFormat.NOTE_SIZE + 2) & 0xFFFF) * SongFormat.PITCH_UNIT;
+    }
+
+    @Override
+    public float getVolume(int i) {
+        return ((packed(i) >>> 20) & 0xFF) * SongFormat.VOLUME_UNIT;
+    }
+
+    @Override
+    public SoundCategory getCategory(int i) {
+        int category = packed(i) >>> 28;
+        if (category >= CATEGORIES.length) {
+            throw new IllegalStateException("Corrupt VSE song file: note " + i + " has category " + category);
+        }
+        return CATEGORIES[category];
+    }
+
+    @Override
+    public int getInstrumentIndex(int i) {
+        int index = data.getShort(notesAt + i * SongFormat.NOTE_SIZE) & 0xFFFF;
+        if (index >= palette.length) {
+            throw new IllegalStateException("Corrupt VSE song file: note " + i + " has palette index " + index);
+        }
+        return index;
+    }
+
+    @Override
+    public Instrument getInstrument(int i) {
+        return palette[getInstrumentIndex(i)];
+    }
+
+    /**
+     * Baked once per distinct timbre, like CompiledSong's, on its first note.
+     */
+    @Override
+    public net.kyori.adventure.sound.Sound getSoundHandle(int i, SoundCategory category) {
+        return timbres.handle(getInstrument(i), getCategory(i), getVolume(i), getPitch(i), category);
+    }
+
+    @Override
+    public int getPaletteSize() {
+        return palette.length;
+    }
+
+    @Override
+    public Instrument getPaletteEntry(int paletteIndex) {
+        return palette[paletteIndex];
+    }
+
+    @Override
+    public int getMaxEndTick() {
+        return maxEndTick;
+    }
+
+    @Override
+    public int startsFrom(int tick) {
+        return data.getInt(startIndexAt + 4 * tick);
+    }
+
+    @Override
+    public int startsTo(int tick) {
+        return data.getInt(startIndexAt + 4 * (tick + 1));
+    }
+
+    /**
+     * Notes are stored in start order, so start event i is note i.
+     */
+    @Override
+    public int startNote(int i) {
+        return i;
+    }
+
+    @Override
+    public int stopsFrom(int tick) {
+        return data.getInt(stopIndexAt + 4 * tick);
+    }
+
+    @Override
+    public int stopsTo(int tick) {
+        return data.getInt(stopIndexAt + 4 * (tick + 1));
+    }
+
+    @Override
+    public int stopNote(int i) {
+        return data.getInt(stopNotesAt + 4 * i);
+    }
+
+    @Override
+    public int soundSlot(int i) {
+        return soundSlots[getInstrumentIndex(i)];
+    }
+
+    @Override
+    public int getSoundSlotCount() {
+        return soundSlotCount;
+    }
+
+    /**
+     * Like CompiledSong, starts from the nearest checkpoint at or before tick,
+     * so it visits at most SEEK_STRIDE ticks of events however long the song
+     * is. Songs that never seek never build the checkpoints.
+     */
+    @Override
+    public void forEachSoundingAt(int tick, IntConsumer action) {
+        if (tick <= 0) {
+            return;
+        }
+        SeekIndex index = seekIndex;
+        if (index == null) {
+            seekIndex = index = buildSeekIndex();
+        }
+        int c = Math.min(tick, maxEndTick) / CompiledSong.SEEK_STRIDE;
+        for (int i = index.offsets[c]; i < index.offsets[c + 1]; i++) {
+            if (index.ends[i] > tick) {
+                action.accept(index.notes[i]);
+            }
+        }
+        for (int t = c * CompiledSong.SEEK_STRIDE, end = Math.min(tick, maxEndTick + 1); t < end; t++) {
+            for (int i = startsFrom(t), to = startsTo(t); i < to; i++) {
+                if (t + duration(i) > tick) {
+                    action.accept(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * The size of the mapped file plus the decoded palette, the timbres seen
+     * so far and, once built, the seek checkpoints.
+     */
+    @Override
+    public long getEstimatedBytes() {
+        SeekIndex index = seekIndex;
+        long seek = index == null ? 0 : 4L * (index.offsets.length + 2L * index.notes.length);
+        return data.capacity() + 64L * palette.length + timbres.getEstimatedBytes() + seek;
+    }
+}
@@ -1,36 +1,464 @@
 package org.nc.VSE;
 
-import org.bukkit.Bukkit;
-import org.bukkit.Sound;
-import org.bukkit.SoundCategory;
+import org.bukkit.Location;
 import org.bukkit.plugin.Plugin;
-import org.bukkit.scheduler.BukkitTask;
 import org.bukkit.entity.Player;
+import org.bukkit.event.HandlerList;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
 
 /**
  * Manages multiple channels. Each channel can have multiple songs and a set of players.
- * We run one repeating task that calls channel.tick() for each channel every tick.
+ * An EngineScheduler runs one repeating task that calls channel.tick() for each channel every tick.
+ * Call the engine from the thread that scheduler ticks on (the main thread on Paper,
+ * the global region thread on Folia), or from any thread through commands().
  */
 public class MultiChannelEngine {
+    // How often members whose Player went offline without being removed are dropped
+    private static final int OFFLINE_SWEEP_TICKS = 100;
 
     private final Plugin plugin;
+    private final EngineScheduler scheduler;
     private final Map<String, Channel> channels;
-    private BukkitTask updateTask;
+    private final SpatialIndex spatialIndex = new SpatialIndex();
+    private final PlayerIndex playerIndex = new PlayerIndex();
+    private final PersonalSongs personalSongs;
+    private QuitListener quitListener;
+    private int ticksToOfflineSweep = OFFLINE_SWEEP_TICKS;
+    private final Runnable songChange = this::songChanging;
 
+    // Skipping ahead: ticks known to have no song events, and the earliest WALL_CLOCK event
+    private int ticksUntilEvent;
+    private long nextEventNanos = Long.MIN_VALUE;
+    private int skippedTicks; // skipped since the songs were last moved ahead
+    private int tickNumber; // ticks run or skipped so far, the tick in trace records
+    private EventTrace trace;
+    private final EngineCommands commands = new EngineCommands(this);
+    private int maxCommandsPerTick = 4096;
+    private volatile boolean shutDown;
+    private volatile SongLibrary songLibrary;
+    // Library songs still loading, per channel, see playSong(channelName, songKey, ...)
+    private final Map<String, Set<String>> pendingStarts = new HashMap<>();
+    private final EngineMetrics metrics = new EngineMetrics();
+    private int stopBurstThreshold = 256;
+    private long slowTickNanos = 5_000_000;
+
+    // Tick budget, see setTickBudget
+    private long tickBudgetNanos; // 0: no budget
+    private final float[] quietVolumes = {0f, 0f, 0.5f}; // per Priority
+    private long lastTickNanos;
+    private boolean deferredLastTick;
+
+    // Snapshot of channels.values() for the tick, rebuilt after channels are added or removed
+    private Channel[] channelArray = new Channel[0];
+    private boolean channelsChanged;
+
+    // Phase one of the tick (sequencing) runs on this pool once there are enough channels
+    private ForkJoinPool sequencingPool = ForkJoinPool.commonPool();
+    private int parallelThreshold = 64;
+
+    /**
+     * Uses the region scheduler on Folia and the main thread otherwise.
+     */
     public MultiChannelEngine(Plugin plugin) {
+        this(plugin, EngineScheduler.forServer(plugin));
+    }
+
+    public MultiChannelEngine(Plugin plugin, EngineScheduler scheduler) {
         this.plugin = plugin;
+        this.scheduler = scheduler;
         this.channels = new HashMap<>();
+        this.personalSongs = new PersonalSongs(scheduler.getOutput());
         startUpdateTask();
     }
 
     private void startUpdateTask() {
-        updateTask = Bukkit.getScheduler().runTaskTimer(plugin, () -> {
-            for (Channel ch : channels.values()) {
-                ch.tick();
+        scheduler.start(this::tick);
+    }
+
+    /**
+     * One engine tick, in two phases:
+     *  1) sequencing: every channel advances its songs and collects due plays/stops.
+     *     This is pure data work, so with many channels it is spread over the ForkJoin pool.
+     *  2) dispatch: the collected events are sent to players, serially on this thread.
+     *
+     * Each tick also finds how many ticks ahead the next song event is. Until
+     * then, ticks return right away and the songs are moved ahead in one step
+     * later (see skip). Once no song is playing, the scheduler is stopped;
+     * starting a song or queuing a command starts it again. Without a quit
+     * listener, an engine with members only skips ticks instead, so the
+     * offline sweep keeps running.
+     */
+    private void tick() {
+        tickNumber++;
+        if (ticksUntilEvent > 0 && ticksToOfflineSweep > 1 && !channelsChanged && personalSongs.isEmpty()
+                && commands.isEmpty() && System.nanoTime() < nextEventNanos) {
+            ticksUntilEvent--;
+            ticksToOfflineSweep--;
+            skippedTicks++;
+            if (metrics.isEnabled()) {
+                metrics.recordSkippedTick();
+            }
+            return;
+        }
+        applySkippedTicks();
+        if (trace != null) {
+            trace.beginTick(tickNumber);
+        }
+
+        boolean timed = metrics.isEnabled();
+        long start = System.nanoTime();
+        long played = 0;
+        long stopped = 0;
+
+        // Over budget last tick: thin out quiet notes, and defer AMBIENT songs every other tick
+        boolean overBudget = tickBudgetNanos > 0 && lastTickNanos > tickBudgetNanos;
+        boolean deferAmbient = overBudget && !deferredLastTick;
+        deferredLastTick = deferAmbient;
+        float[] quiet = overBudget ? quietVolumes : null;
+
+        int ran = commands.drain(maxCommandsPerTick);
+        spatialIndex.nextTick();
+        if (--ticksToOfflineSweep <= 0) {
+            ticksToOfflineSweep = OFFLINE_SWEEP_TICKS;
+            for (UUID id : playerIndex.offline()) {
+                removePlayerFromAllChannels(id);
+            }
+            personalSongs.stopOffline();
+        }
+
+        if (channelsChanged) {
+            channelArray = channels.values().toArray(new Channel[0]);
+            channelsChanged = false;
+            metrics.setChannels(channelArray);
+        }
+        Channel[] chs = channelArray;
+        for (Channel ch : chs) {
+            ch.prepare(quiet, deferAmbient);
+        }
+        long now = System.nanoTime();
+
+        if (sequencingPool != null && chs.length >= parallelThreshold) {
+            sequencingPool.invoke(new SequenceTask(chs, 0, chs.length, now, timed));
+        } else {
+            for (Channel ch : chs) {
+                if (timed) {
+                    ch.sequenceTimed(now);
+                } else {
+                    ch.sequence(now);
+                }
+            }
+        }
+        int deferred = 0;
+        boolean busy = false;
+        int idleTicks = Integer.MAX_VALUE;
+        long eventNanos = Long.MAX_VALUE;
+        for (Channel ch : chs) {
+            if (ch.hasSongs()) {
+                busy = true;
+                idleTicks = Math.min(idleTicks, ch.getIdleTicks());
+                eventNanos = Math.min(eventNanos, ch.getNextEventNanos());
+            }
+            deferred += ch.songsDeferred;
+            ch.songsDeferred = 0;
+            if (timed) {
+                ch.dispatchTimed();
+            } else {
+                ch.dispatch();
+            }
+            played += ch.playsSent;
+            stopped += ch.stopsSent;
+            collect(ch);
+        }
+        if (!personalSongs.isEmpty()) {
+            personalSongs.tick(now);
+            played += personalSongs.playsSent;
+            stopped += personalSongs.stopsSent;
+            collectPersonal();
+        }
+        ticksUntilEvent = busy ? idleTicks : 0;
+        nextEventNanos = eventNanos;
+        if (!busy && personalSongs.isEmpty()) {
+            if (quitListener == null && playerIndex.size() > 0) {
+                // nothing plays, but members that go offline must still be dropped: skip to the next sweep
+                ticksUntilEvent = ticksToOfflineSweep;
+            } else {
+                sleep();
+            }
+        }
+
+        if (trace != null) {
+            trace.publish();
+        }
+        lastTickNanos = System.nanoTime() - start;
+        if (timed) {
+            metrics.recordTick(lastTickNanos);
+            if (overBudget) {
+                metrics.recordOverBudget(deferred);
+            }
+        }
+        if (lastTickNanos >= slowTickNanos && SlowTickEvent.TYPE.isEnabled()) {
+            SlowTickEvent event = new SlowTickEvent();
+            if (event.shouldCommit()) {
+                event.tickNanos = lastTickNanos;
+                event.channels = chs.length;
+                event.commands = ran;
+                event.playsSent = played;
+                event.stopsSent = stopped;
+                event.commit();
+            }
+        }
+    }
+
+    private void collectPersonal() {
+        if (metrics.isEnabled()) {
+            metrics.recordSent(personalSongs.playsSent, personalSongs.stopsSent, 0);
+        }
+        personalSongs.playsSent = 0;
+        personalSongs.stopsSent = 0;
+    }
+
+    /**
+     * Moves a channel's sent counts into the metrics, raising a StopBurst event if it sent many stops.
+     */
+    private void collect(Channel ch) {
+        long plays = ch.playsSent;
+        long stops = ch.stopsSent;
+        long thinned = ch.notesThinned;
+        if (plays == 0 && stops == 0 && thinned == 0) {
+            return;
+        }
+        ch.playsSent = 0;
+        ch.stopsSent = 0;
+        ch.notesThinned = 0;
+        if (metrics.isEnabled()) {
+            metrics.recordSent(plays, stops, thinned);
+        }
+        if (stops >= stopBurstThreshold) {
+            if (metrics.isEnabled()) {
+                metrics.recordStopBurst();
+            }
+            if (StopBurstEvent.TYPE.isEnabled()) {
+                StopBurstEvent burst = new StopBurstEvent();
+                burst.channel = ch.getChannelName();
+                burst.stops = stops;
+                burst.audience = ch.getLastAudienceSize();
+                burst.commit();
+            }
+        }
+    }
+
+    /**
+     * Splits the channel array until a batch is small enough to sequence directly.
+     */
+    private static final class SequenceTask extends RecursiveAction {
+        private static final int BATCH = 16;
+
+        private final Channel[] channels;
+        private final int from;
+        private final int to;
+        private final long now;
+        private final boolean timed;
+
+        SequenceTask(Channel[] channels, int from, int to, long now, boolean timed) {
+            this.channels = channels;
+            this.from = from;
+            this.to = to;
+            this.now = now;
+            this.timed = timed;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH) {
+                for (int i = from; i < to; i++) {
+                    if (timed) {
+                        channels[i].sequenceTimed(now);
+                    } else {
+                        channels[i].sequence(now);
+                    }
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new SequenceTask(channels, from, mid, now, timed),
+                        new SequenceTask(channels, mid, to, now, timed));
             }
-        }, 0L, 1L);
+        }
+    }
+
+    /**
+     * Sequence channels in parallel on pool once there are at least minChannels of them.
+     * Pass a null pool to always sequence on the engine thread.
+     */
+    public void setParallelSequencing(ForkJoinPool pool, int minChannels) {
+        this.sequencingPool = pool;
+        this.parallelThreshold = minChannels;
+    }
+
+    /**
+     * Called when a command is queued from any thread; restarts the tick if it was stopped.
+     */
+    void wake() {
+        if (!shutDown && !scheduler.isRunning()) {
+            scheduler.start(this::tick);
+        }
+    }
+
+    /**
+     * Stops the scheduler while nothing plays; wake() starts it again.
+     */
+    private void sleep() {
+        if (commands.isEmpty() && scheduler.isRunning()) {
+            scheduler.stop();
+            // a command queued while we were stopping saw the scheduler running and didn't wake it
+            if (!commands.isEmpty()) {
+                wake();
+            }
+        }
+    }
+
+    /**
+     * A channel is about to start or stop a song: move its songs over the
+     * skipped ticks first, and make sure the next tick runs.
+     */
+    private void songChanging() {
+        applySkippedTicks();
+        ticksUntilEvent = 0;
+        wake();
+    }
+
+    private void applySkippedTicks() {
+        if (skippedTicks > 0) {
+            for (Channel ch : channelArray) {
+                ch.skip(skippedTicks);
+            }
+            skippedTicks = 0;
+        }
+    }
+
+    public Plugin getPlugin() {
+        return plugin;
+    }
+
+    public EngineScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Thread-safe front-end: queue engine calls from any thread, they run at the start of the next tick.
+     */
+    public EngineCommands commands() {
+        return commands;
+    }
+
+    /**
+     * The library playSong(channelName, songKey, ...) takes songs from.
+     */
+    public void setSongLibrary(SongLibrary songLibrary) {
+        this.songLibrary = songLibrary;
+    }
+
+    public SongLibrary getSongLibrary() {
+        return songLibrary;
+    }
+
+    /**
+     * Tick cost and sound counts of this engine; take snapshot()s from any thread.
+     * Turn collection off with getMetrics().setEnabled(false).
+     */
+    public EngineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Records every play and stop sent from now on into trace; null turns tracing off.
+     * The engine doesn't close the trace.
+     */
+    public void setTrace(EventTrace trace) {
+        if (this.trace != null) {
+            this.trace.publish();
+        }
+        this.trace = trace;
+        if (trace != null) {
+            trace.setLogger(plugin.getLogger());
+        }
+        for (Channel ch : channels.values()) {
+            ch.setTrace(trace);
+        }
+        personalSongs.trace = trace;
+    }
+
+    public EventTrace getTrace() {
+        return trace;
+    }
+
+    /**
+     * A channel sending at least this many stops in one tick raises a StopBurst JFR event.
+     */
+    public void setStopBurstThreshold(int stopBurstThreshold) {
+        this.stopBurstThreshold = stopBurstThreshold;
+    }
+
+    /**
+     * A tick taking at least this long raises a SlowTick JFR event; 5 ms by default.
+     */
+    public void setSlowTickThreshold(long nanos) {
+        this.slowTickNanos = nanos;
+    }
+
+    /**
+     * Sets how long the engine's own work may take per tick, e.g. 5 ms; 0 (the default) turns it off.
+     * After a tick over budget, the next tick degrades by Priority: notes quieter than
+     * the quiet volume of their song's priority are skipped (see setQuietVolume), and
+     * AMBIENT songs sit out every other tick, then play the missed tick late as their
+     * LatePolicy says. CUE songs always play in full. Once a tick fits the budget
+     * again, everything plays normally. Decisions are counted in getMetrics().
+     */
+    public void setTickBudget(long nanos) {
+        this.tickBudgetNanos = nanos;
+    }
+
+    public long getTickBudget() {
+        return tickBudgetNanos;
+    }
+
+    /**
+     * While over budget, notes of songs with this priority that are quieter than
+     * volume are skipped. Defaults: NORMAL 0 (nothing skipped), AMBIENT 0.5.
+     * CUE notes are never skipped.
+     */
+    public void setQuietVolume(Priority priority, float volume) {
+        if (priority == Priority.CUE) {
+            throw new IllegalArgumentException("CUE notes always play");
+        }
+        quietVolumes[priority.ordinal()] = volume;
+    }
+
+    /**
+     * Sets a channel's priority, see setTickBudget.
+     */
+    public void setPriority(String channelName, Priority priority) {
+        getOrCreateChannel(channelName).setPriority(priority);
+    }
+
+    /**
+     * Sets the priority of a playing song, overriding its channel's.
+     */
+    public void setSongPriority(String channelName, String songId, Priority priority) {
+        Channel ch = channels.get(channelName);
+        if (ch != null) {
+            ch.setSongPriority(songId, priority);
+        }
+    }
+
+    /**
+     * How many queued commands one tick runs at most; the rest wait for the next tick.
+     */
+    public void setMaxCommandsPerTick(int maxCommandsPerTick) {
+        this.maxCommandsPerTick = maxCommandsPerTick;
     }
 
     /**
@@ -39,41 +467,60 @@ public class MultiChannelEngine {
     public Channel getOrCreateChannel(String channelName) {
         Channel ch = channels.get(channelName);
         if (ch == null) {
-            ch = new Channel(channelName);
+            ch = new Channel(channelName, scheduler.getOutput());
+            ch.setPlayerIndex(playerIndex);
+            ch.setOnSongChange(songChange);
+            ch.setTrace(trace);
             channels.put(channelName, ch);
+            channelsChanged = true;
         }
         return ch;
     }
 
     /**
-     * Remove a channel entirely, stopping all songs in it.
+     * Create a channel anchored at a location, heard by whoever is within radius.
+     * An existing channel with that name is replaced.
+     * Not available on Folia, where the tick can't read player locations.
      */
-    private void checkAndStopUpdateTask() {
-        if (channels.isEmpty() && updateTask != null) {
-            updateTask.cancel();
-            updateTask = null;
+    public PositionalChannel createPositionalChannel(String channelName, Location anchor, double radius,
+                                                     PositionalChannel.Mode mode) {
+        if (!scheduler.canReadPlayers()) {
+            throw new UnsupportedOperationException("Positional channels need player locations, which this "
+                    + "engine's scheduler can't read from the tick");
         }
+        PositionalChannel ch = new PositionalChannel(channelName, anchor, radius, mode, spatialIndex,
+                scheduler.getOutput());
+        ch.setPlayerIndex(playerIndex);
+        ch.setOnSongChange(songChange);
+        ch.setTrace(trace);
+        Channel old = channels.put(channelName, ch);
+        channelsChanged = true;
+        if (old != null) {
+            old.clear();
+            collect(old);
+        }
+        return ch;
     }
-    
+
+    /**
+     * The player position index shared by all positional channels of this engine.
+     */
+    public SpatialIndex getSpatialIndex() {
+        return spatialIndex;
+    }
+
+    /**
+     * Remove a channel entirely, stopping all songs in it.
+     */
     public void removeChannel(String channelName) {
+        pendingStarts.remove(channelName);
         Channel ch = channels.remove(channelName);
         if (ch != null) {
-            for (Player p : ch.getPlayers()) {
-                for (String s : ch.getAllPlayedStrings()) {
-                    if(s!=null){
-                        for (SoundCategory category : SoundCategory.values()) {
-                            p.stopSound(s, category);
-                        }
-                    }
-                  }  
-                  for (Sound sound : ch.getAllPlayedSounds()) {
-                    if(sound!=null){
-                    p.stopSound(sound, SoundCategory.MASTER);}
-                  }    
-                ch.removePlayer(p);
-            }
+            channelsChanged = true;
+            // every player gets stops only for what they still hear from this channel
+            ch.clear();
+            collect(ch);
         }
-        checkAndStopUpdateTask();
     }
     
 
@@ -86,46 +533,44 @@ public class MultiChannelEngine {
     public void removePlayerFromChannel(String channelName, Player p) {
         Channel ch = channels.get(channelName);
         if (ch != null) {
-            if (ch.getPlayers().contains(p)) {
-                for (String s : ch.getAllPlayedStrings()) {
-                    if(s!=null){
-                        for (SoundCategory category : SoundCategory.values()) {
-                            p.stopSound(s, category);
-                        }
-                    }
-                  }  
-                  for (Sound sound : ch.getAllPlayedSounds()) {
-                    if(sound!=null){
-                    p.stopSound(sound, SoundCategory.MASTER);}
-                  }    
             ch.removePlayer(p);
+        }
+    }
 
+    /**
+     * Removes a player from every channel they are in, e.g. when they quit.
+     * Only their own channels are visited; channels stay even if they end up
+     * empty (use removeChannel for that).
+     */
+    public void removePlayerFromAllChannels(Player player) {
+        removePlayerFromAllChannels(player.getUniqueId());
+    }
 
+    public void removePlayerFromAllChannels(UUID playerId) {
+        for (Channel channel : playerIndex.channelsOf(playerId)) {
+            channel.removePlayer(playerId);
+            collect(channel);
         }
     }
+
+    /**
+     * The channels a player is in.
+     */
+    public List<Channel> getChannelsOf(UUID playerId) {
+        return Arrays.asList(playerIndex.channelsOf(playerId));
     }
-    public void removePlayerFromAllChannels(Player player) {
-        Iterator<Map.Entry<String, Channel>> it = channels.entrySet().iterator();
-        while (it.hasNext()) {
-            Channel channel = it.next().getValue();
-            if (channel.getPlayers().contains(player)) {
-                for (String s : channel.getAllPlayedStrings()) {
-                    if(s!=null){
-                        for (SoundCategory category : SoundCategory.values()) {
-                            player.stopSound(s, category);
-                        }
-                    }
-                  }  
-                  for (Sound sound : channel.getAllPlayedSounds()) {
-                    if(sound!=null){
-                    player.stopSound(sound, SoundCategory.MASTER);}
-                  }    
-                channel.removePlayer(player);
-            }
-            // Remove the channel if it has no players left
-            if (channel.getPlayers().isEmpty()) {
-                it.remove();
-            }
+
+    /**
+     * Removes players from all channels when they quit, so a forgotten
+     * removePlayerFromAllChannels can't keep a Player alive. Without it, players
+     * that went offline are still dropped, but only every few seconds, and the
+     * engine can't sleep while any channel has members.
+     * The removal is queued through commands(), so this is safe on Folia too.
+     */
+    public void registerQuitListener() {
+        if (quitListener == null) {
+            quitListener = new QuitListener(commands);
+            plugin.getServer().getPluginManager().registerEvents(quitListener, plugin);
         }
     }
     
@@ -139,10 +584,136 @@ public class MultiChannelEngine {
         return ch.playSong(song, looping, songId);
     }
 
+    /**
+     * Same as above, for a song that is already compiled.
+     */
+    public String playSong(String channelName, SongTimeline song, boolean looping, String songId) {
+        Channel ch = getOrCreateChannel(channelName);
+        return ch.playSong(song, looping, songId);
+    }
+
+    /**
+     * Start a song from the SongLibrary by its key. If the song is loaded it starts
+     * right away; otherwise it is loaded in the background and starts on the tick
+     * after it is ready, so this never blocks on I/O. The song stays pinned in the
+     * library while it plays. Returns the songId, which is chosen up front:
+     * stopSong or removeChannel before the song is loaded cancel the start.
+     */
+    public String playSong(String channelName, String songKey, boolean looping, String songId) {
+        SongLibrary library = songLibrary;
+        if (library == null) {
+            throw new IllegalStateException("No SongLibrary set, see setSongLibrary");
+        }
+        String id = songId == null || songId.isEmpty() ? UUID.randomUUID().toString() : songId;
+        if (!playFromLibrary(channelName, library, songKey, null, looping, id)) {
+            getOrCreateChannel(channelName);
+            pendingStarts.computeIfAbsent(channelName, k -> new HashSet<>()).add(id);
+            library.prefetch(songKey).whenComplete((song, ex) -> {
+                if (ex != null) {
+                    plugin.getLogger().log(Level.WARNING, "Couldn't load song '" + songKey + "'", ex);
+                }
+                commands.submit(e -> e.startLoaded(channelName, library, songKey, ex == null ? song : null,
+                        looping, id));
+            });
+        }
+        return id;
+    }
+
+    /**
+     * Plays a library song once it is loaded, unless its start was cancelled
+     * meanwhile; song is null if it couldn't be loaded.
+     */
+    private void startLoaded(String channelName, SongLibrary library, String songKey, SongTimeline song,
+                             boolean looping, String songId) {
+        Set<String> pending = pendingStarts.get(channelName);
+        if (pending == null || !pending.remove(songId)) {
+            return; // cancelled
+        }
+        if (pending.isEmpty()) {
+            pendingStarts.remove(channelName);
+        }
+        if (song != null && channels.containsKey(channelName)) {
+            playFromLibrary(channelName, library, songKey, song, looping, songId);
+        }
+    }
+
+    /**
+     * Pins the song and plays it; false if it isn't loaded and loaded is null.
+     */
+    private boolean playFromLibrary(String channelName, SongLibrary library, String songKey, SongTimeline loaded,
+                                    boolean looping, String songId) {
+        SongLibrary.Entry pinned = library.acquire(songKey, loaded);
+        if (pinned == null) {
+            return false;
+        }
+        getOrCreateChannel(channelName).playSong(pinned.song, looping, songId, () -> library.release(pinned));
+        return true;
+    }
+
+    /**
+     * Plays a song to one player only, outside any channel, e.g. a personal jingle.
+     * The playback is an entry in this engine's tick, not a task of its own,
+     * and stopping it is O(1).
+     * @param delayTicks engine ticks before the song starts
+     * @param period     engine ticks per song tick (1 for normal speed)
+     */
+    public PersonalPlayback playTo(Player player, SongTimeline song, boolean looping, long delayTicks, int period) {
+        return playTo(player, song, looping, delayTicks, period, null);
+    }
+
+    public PersonalPlayback playTo(Player player, Song song, boolean looping) {
+        return playTo(player, song.compile(), looping, 0, 1, null);
+    }
+
+    /**
+     * Same as above; onEnd runs once the playback ends or is stopped.
+     */
+    PersonalPlayback playTo(Player player, SongTimeline song, boolean looping, long delayTicks, int period,
+                            Runnable onEnd) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        ActiveSong as = new ActiveSong(player.getUniqueId().toString(), song, looping);
+        as.setOnEnd(onEnd);
+        PersonalPlayback pb = new PersonalPlayback(player, as, delayTicks, period);
+        personalSongs.add(pb);
+        wake();
+        return pb;
+    }
+
+    /**
+     * How many personal playbacks are running.
+     */
+    public int getPersonalPlaybackCount() {
+        return personalSongs.size();
+    }
+
+    /**
+     * Set how songs started in a channel from now on are timed, see TimingMode and LatePolicy.
+     */
+    public void setTiming(String channelName, TimingMode timing, LatePolicy latePolicy) {
+        getOrCreateChannel(channelName).setTiming(timing, latePolicy);
+    }
+
+    /**
+     * Jumps a playing song to a tick; right after playSong, it starts the song there.
+     * See ActiveSong.seek.
+     */
+    public void seek(String channelName, String songId, int tick) {
+        Channel ch = channels.get(channelName);
+        if (ch != null) {
+            ch.seek(songId, tick);
+        }
+    }
+
     /**
      * Stop a specific song in a channel, if it exists.
      */
     public void stopSong(String channelName, String songId) {
+        Set<String> pending = pendingStarts.get(channelName);
+        if (pending != null && pending.remove(songId) && pending.isEmpty()) {
+            pendingStarts.remove(channelName);
+        }
         Channel ch = channels.get(channelName);
         if (ch != null) {
             ch.stopSong(songId);
@@ -151,12 +722,29 @@ public class MultiChannelEngine {
 
     /**
      * Cleanly shut down this entire engine if needed, 
-     * e.g., on plugin disable. Cancels the updateTask.
+     * e.g., on plugin disable. Stops the scheduler.
      */
     public void shutdown() {
-        if (updateTask != null) {
-            updateTask.cancel();
+        shutDown = true;
+        pendingStarts.clear();
+        SingleSongEngine.forget(this);
+        if (quitListener != null) {
+            HandlerList.unregisterAll(quitListener);
+            quitListener = null;
+        }
+        for (Channel ch : channels.values()) {
+            ch.clear();
+            collect(ch);
         }
         channels.clear();
+        channelsChanged = true;
+        metrics.setChannels(new Channel[0]);
+        personalSongs.clear();
+        collectPersonal();
+        if (trace != null) {
+            trace.publish();
+        }
+        // stopped last, so a backend that defers sounds still sends these stops
+        scheduler.stop();
     }
 }
@@ -0,0 +1,385 @@
+package org.nc.VSE;
+
+import org.bukkit.Sound;
+import org.bukkit.SoundCategory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Imports Note Block Studio (.nbs) files straight into CompiledSongs.
+ *
+ * The file is streamed through a small fixed buffer, and notes are kept as
+ * a few primitive arrays until the instruments and layers (stored after the
+ * notes in the format) are known; no Note objects are created. Supports the
+ * classic format and OpenNBS versions 1 to 5.
+ *
+ * Vanilla instruments map to the note block Sounds, custom instruments to a
+ * custom sound key (by default the sound file name). NBS notes are one-shot,
+ * and stereo panning is ignored. By default ticks are rescaled to the 20 TPS
+ * server grid, so the song plays at its real speed in SERVER_TICKS timing too.
+ */
+public class NbsImporter {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_STRING_BYTES = 1 << 20;
+    private static final int DEFAULT_KEY = 45; // F#4, played at pitch 1.0
+
+    private static final Sound[] VANILLA_INSTRUMENTS = {
+            Sound.BLOCK_NOTE_BLOCK_HARP,
+            Sound.BLOCK_NOTE_BLOCK_BASS,
+            Sound.BLOCK_NOTE_BLOCK_BASEDRUM,
+            Sound.BLOCK_NOTE_BLOCK_SNARE,
+            Sound.BLOCK_NOTE_BLOCK_HAT,
+            Sound.BLOCK_NOTE_BLOCK_GUITAR,
+            Sound.BLOCK_NOTE_BLOCK_FLUTE,
+            Sound.BLOCK_NOTE_BLOCK_BELL,
+            Sound.BLOCK_NOTE_BLOCK_CHIME,
+            Sound.BLOCK_NOTE_BLOCK_XYLOPHONE,
+            Sound.BLOCK_NOTE_BLOCK_IRON_XYLOPHONE,
+            Sound.BLOCK_NOTE_BLOCK_COW_BELL,
+            Sound.BLOCK_NOTE_BLOCK_DIDGERIDOO,
+            Sound.BLOCK_NOTE_BLOCK_BIT,
+            Sound.BLOCK_NOTE_BLOCK_BANJO,
+            Sound.BLOCK_NOTE_BLOCK_PLING
+    };
+
+    private SoundCategory category = SoundCategory.MASTER;
+    private boolean serverTickGrid = true;
+    private Function<String, String> customInstrumentKeys = NbsImporter::defaultCustomKey;
+
+    /**
+     * Category of the imported notes, MASTER by default.
+     */
+    public void setCategory(SoundCategory category) {
+        this.category = category;
+    }
+
+    /**
+     * If true (default), ticks are rescaled to 20 per second and the song gets the
+     * default tempo. If false, the NBS ticks are kept and the NBS speed becomes the
+     * tempo, which only WALL_CLOCK timing honours.
+     */
+    public void setServerTickGrid(boolean serverTickGrid) {
+        this.serverTickGrid = serverTickGrid;
+    }
+
+    /**
+     * Maps a custom instrument's sound file (as stored in the .nbs) to the sound key to play.
+     */
+    public void setCustomInstrumentKeys(Function<String, String> customInstrumentKeys) {
+        this.customInstrumentKeys = customInstrumentKeys;
+    }
+
+    public CompiledSong read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return read(channel, titleOf(file));
+        }
+    }
+
+    /**
+     * Reads a song from a channel; fallbackTitle is used if the file has no name.
+     */
+    public CompiledSong read(ReadableByteChannel channel, String fallbackTitle) throws IOException {
+        return read(new Input(channel), fallbackTitle);
+    }
+
+    /**
+     * Reads a song from a buffer holding the whole file.
+     */
+    public CompiledSong read(ByteBuffer data, String fallbackTitle) throws IOException {
+        return read(new Input(data), fallbackTitle);
+    }
+
+    /**
+     * Imports many files in parallel, with at most parallelism files in memory at once.
+     * onSong and onError are called from the worker threads as each file finishes;
+     * a file that fails to import, with an IOException or e.g. an invalid custom
+     * sound key, goes to onError and the others carry on.
+     * @throws InterruptedException if interrupted before every file was imported;
+     *         the files not started yet are skipped
+     */
+    public void importAll(Collection<Path> files, int parallelism,
+                          BiConsumer<Path, CompiledSong> onSong, BiConsumer<Path, Exception> onError)
+            throws InterruptedException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.submit(() -> files.parallelStream().forEach(file -> {
+                CompiledSong song;
+                try {
+                    song = read(file);
+                } catch (IOException | RuntimeException e) {
+                    onError.accept(file, e);
+                    return;
+                }
+                onSong.accept(file, song);
+            })).get();
+        } catch (ExecutionException e) {
+            // only the callbacks can get here
+            throw new IllegalStateException("NBS import failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private CompiledSong read(Input in, String fallbackTitle) throws IOException {
+        // (1) header
+        int version = 0;
+        int vanillaCount = 10;
+        int first = in.u16();
+        if (first == 0) {
+            version = in.u8();
+            vanillaCount = in.u8();
+            if (version >= 3) {
+                in.u16(); // song length
+            }
+        }
+        int layerCount = in.u16();
+        String name = in.string();
+        in.skipString(); // author
+        in.skipString(); // original author
+        in.skipString(); // description
+        int nbsTempo = in.u16(); // ticks per second * 100
+        in.skip(3);  // auto-saving, auto-saving duration, time signature
+        in.skip(20); // minutes spent, left/right clicks, note blocks added/removed
+        in.skipString(); // imported schematic name
+        if (version >= 4) {
+            in.skip(4); // loop on/off, max loop count, loop start tick
+        }
+
+        // (2) notes, kept raw until instruments and layers are known
+        RawNotes notes = new RawNotes();
+        int tick = -1;
+        for (int jump = in.u16(); jump != 0; jump = in.u16()) {
+            tick += jump;
+            int layer = -1;
+            for (int layerJump = in.u16(); layerJump != 0; layerJump = in.u16()) {
+                layer += layerJump;
+                int instrument = in.u8();
+                int key = in.u8();
+                int velocity = 100;
+                int finePitch = 0;
+                if (version >= 4) {
+                    velocity = in.u8();
+                    in.u8(); // panning
+                    finePitch = in.i16();
+                }
+                notes.add(tick, layer, instrument, key, velocity, finePitch);
+            }
+        }
+
+        // (3) layers
+        float[] layerVolumes = new float[layerCount];
+        for (int i = 0; i < layerCount; i++) {
+            in.skipString(); // layer name
+            if (version >= 4) {
+                in.u8(); // locked
+            }
+            layerVolumes[i] = in.u8() / 100f;
+            if (version >= 2) {
+                in.u8(); // stereo
+            }
+        }
+
+        // (4) custom instruments
+        int customCount = in.u8();
+        Instrument[] customInstruments = new Instrument[customCount];
+        int[] customKeys = new int[customCount];
+        for (int i = 0; i < customCount; i++) {
+            in.skipString(); // instrument name
+            String file = in.string();
+            customKeys[i] = in.u8();
+            in.u8(); // press piano key
+            customInstruments[i] = Instrument.of(null, customInstrumentKeys.apply(file));
+        }
+
+        // (5) build the song
+        double ticksPerSecond = nbsTempo > 0 ? nbsTempo / 100.0 : 10.0;
+        double tickScale = serverTickGrid ? 20.0 / ticksPerSecond : 1.0;
+        int tempo = serverTickGrid
+                ? Song.DEFAULT_TEMPO
+                : (int) Math.round(ticksPerSecond * 60.0 / Song.TICKS_PER_BEAT);
+        String title = name.isEmpty() ? fallbackTitle : name;
+
+        CompiledSong.Builder builder = new CompiledSong.Builder(title, tempo, notes.size);
+        int[] paletteIndex = new int[256];
+        Arrays.fill(paletteIndex, -1);
+        for (int i = 0; i < notes.size; i++) {
+            int instrument = notes.instruments[i] & 0xFF;
+            int baseKey;
+            if (instrument < vanillaCount) {
+                if (instrument >= VANILLA_INSTRUMENTS.length) continue;
+                baseKey = DEFAULT_KEY;
+                if (paletteIndex[instrument] < 0) {
+                    paletteIndex[instrument] = builder.addInstrument(Instrument.of(VANILLA_INSTRUMENTS[instrument], null));
+                }
+            } else {
+                int custom = instrument - vanillaCount;
+                if (custom >= customCount) continue;
+                baseKey = customKeys[custom];
+                if (paletteIndex[instrument] < 0) {
+                    paletteIndex[instrument] = builder.addInstrument(customInstruments[custom]);
+                }
+            }
+
+            int start = (int) Math.round(notes.ticks[i] * tickScale);
+            int cents = ((notes.keys[i] & 0xFF) - baseKey) * 100 + notes.finePitches[i];
+            float pitch = (float) Math.pow(2.0, cents / 1200.0);
+            int layer = notes.layers[i];
+            float layerVolume = layer < layerCount ? layerVolumes[layer] : 1f;
+            float volume = (notes.velocities[i] & 0xFF) / 100f * layerVolume;
+            builder.add(start, start, pitch, volume, category, paletteIndex[instrument]);
+        }
+        return builder.build();
+    }
+
+    private static String titleOf(Path file) {
+        String name = file.getFileName().toString();
+        return name.toLowerCase(Locale.ROOT).endsWith(".nbs") ? name.substring(0, name.length() - 4) : name;
+    }
+
+    /**
+     * "Custom/My Piano.ogg" -> "my_piano"
+     */
+    private static String defaultCustomKey(String file) {
+        String name = file.replace('\\', '/');
+        name = name.substring(name.lastIndexOf('/') + 1);
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return name.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9_.\\-]", "_");
+    }
+
+    /**
+     * Notes as read from the file, in primitive arrays.
+     */
+    private static final class RawNotes {
+        int[] ticks = new int[256];
+        short[] layers = new short[256];
+        byte[] instruments = new byte[256];
+        byte[] keys = new byte[256];
+        byte[] velocities = new byte[256];
+        short[] finePitches = new short[256];
+        int size;
+
+        void add(int tick, int layer, int instrument, int key, int velocity, int finePitch) {
+            if (size == ticks.length) {
+                int capacity = size * 2;
+                ticks = Arrays.copyOf(ticks, capacity);
+                layers = Arrays.copyOf(layers, capacity);
+                instruments = Arrays.copyOf(instruments, capacity);
+                keys = Arrays.copyOf(keys, capacity);
+                velocities = Arrays.copyOf(velocities, capacity);
+                finePitches = Arrays.copyOf(finePitches, capacity);
+            }
+            ticks[size] = tick;
+            layers[size] = (short) layer;
+            instruments[size] = (byte) instrument;
+            keys[size] = (byte) key;
+            velocities[size] = (byte) velocity;
+            finePitches[size] = (short) finePitch;
+            size++;
+        }
+    }
+
+    /**
+     * Little-endian reader over either a complete buffer or a channel
+     * streamed through a fixed BUFFER_SIZE window.
+     */
+    private static final class Input {
+        private final ReadableByteChannel channel;
+        private final ByteBuffer buf;
+
+        Input(ReadableByteChannel channel) {
+            this.channel = channel;
+            this.buf = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buf.flip(); // start empty
+        }
+
+        Input(ByteBuffer data) {
+            this.channel = null;
+            this.buf = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Makes sure n (at most BUFFER_SIZE) bytes can be read from buf.
+         */
+        private void require(int n) throws IOException {
+            if (buf.remaining() >= n) return;
+            if (channel == null) throw new EOFException("Unexpected end of .nbs data");
+            buf.compact();
+            while (buf.position() < n) {
+                if (channel.read(buf) < 0) {
+                    throw new EOFException("Unexpected end of .nbs data");
+                }
+            }
+            buf.flip();
+        }
+
+        int u8() throws IOException {
+            require(1);
+            return buf.get() & 0xFF;
+        }
+
+        int u16() throws IOException {
+            require(2);
+            return buf.getShort() & 0xFFFF;
+        }
+
+        int i16() throws IOException {
+            require(2);
+            return buf.getShort();
+        }
+
+        int i32() throws IOException {
+            require(4);
+            return buf.getInt();
+        }
+
+        void skip(int n) throws IOException {
+            while (n > 0) {
+                int chunk = Math.min(n, BUFFER_SIZE);
+                require(chunk);
+                buf.position(buf.position() + chunk);
+                n -= chunk;
+            }
+        }
+
+        private int stringLength() throws IOException {
+            int length = i32();
+            if (length < 0 || length > MAX_STRING_BYTES) {
+                throw new IOException("Invalid .nbs string length " + length);
+            }
+            return length;
+        }
+
+        String string() throws IOException {
+            byte[] bytes = new byte[stringLength()];
+            for (int off = 0; off < bytes.length; ) {
+                int chunk = Math.min(bytes.length - off, BUFFER_SIZE);
+                require(chunk);
+                buf.get(bytes, off, chunk);
+                off += chunk;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        void skipString() throws IOException {
+            skip(stringLength());
+        }
+    }
+}
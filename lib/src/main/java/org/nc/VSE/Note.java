@@ -3,6 +3,11 @@ package org.nc.VSE;
 import org.bukkit.Sound;
 import org.bukkit.SoundCategory;
 
+/**
+ * One sound of a song. Its instrument is checked when the note is created:
+ * a constructor throws IllegalArgumentException if there is neither a Sound
+ * nor a custom key, or the custom key isn't a valid sound key (see Instrument).
+ */
 public class Note {
     private final Sound instrument;
     private final SoundCategory category;
@@ -16,6 +21,7 @@ public class Note {
         this.instrument = instrument;
         this.category = category;
         this.instr=null;
+        Instrument.soundKey(instrument, null);
         this.startTick = startTick;
         this.endTick = endTick;
         this.pitch = pitch;
@@ -26,6 +32,7 @@ public class Note {
         this.instrument = instrument;
         this.category = category;
         this.instr=instr;
+        Instrument.soundKey(this.instrument, instr);
         this.startTick = startTick;
         this.endTick = endTick;
         this.pitch = pitch;
@@ -36,6 +43,7 @@ public class Note {
         this.instrument = null;
         this.category = SoundCategory.MASTER;
         this.instr=instr;
+        Instrument.soundKey(this.instrument, instr);
         this.startTick = startTick;
         this.endTick = endTick;
         this.pitch = pitch;
@@ -46,6 +54,7 @@ public class Note {
         this.instrument = null;
         this.category = category;
         this.instr=instr;
+        Instrument.soundKey(this.instrument, instr);
         this.startTick = startTick;
         this.endTick = endTick;
         this.pitch = pitch;
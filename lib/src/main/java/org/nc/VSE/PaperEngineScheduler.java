@@ -0,0 +1,41 @@
+package org.nc.VSE;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Ticks the engine with a repeating main-thread task and sends sounds directly.
+ */
+public class PaperEngineScheduler implements EngineScheduler {
+    private final Plugin plugin;
+    private volatile BukkitTask task;
+
+    public PaperEngineScheduler(Plugin plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public synchronized void start(Runnable tick) {
+        if (task != null) return;
+        task = Bukkit.getScheduler().runTaskTimer(plugin, tick, 0L, 1L);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return task != null;
+    }
+
+    @Override
+    public SoundOutput getOutput() {
+        return SoundOutput.direct();
+    }
+}
@@ -0,0 +1,49 @@
+package org.nc.VSE;
+
+import org.bukkit.entity.Player;
+
+/**
+ * A song playing to one player, outside any channel; see MultiChannelEngine.playTo.
+ *
+ * It is only a cursor (an ActiveSong) over the shared compiled song plus what
+ * the player hears sustained, ticked by the engine's own loop; there is no
+ * scheduler task per player.
+ */
+public final class PersonalPlayback {
+    final Player player;
+    final ActiveSong song;
+    final SoundLedger ledger = new SoundLedger();
+    long delay; // engine ticks left before the first song tick
+    final int period; // engine ticks per song tick
+    int countdown;
+    int index = -1; // position in the engine's list while playing
+
+    PersonalPlayback(Player player, ActiveSong song, long delay, int period) {
+        this.player = player;
+        this.song = song;
+        this.delay = delay;
+        this.period = period;
+    }
+
+    public Player getPlayer() {
+        return player;
+    }
+
+    public SongTimeline getTimeline() {
+        return song.getTimeline();
+    }
+
+    /**
+     * True until the song ends or is stopped (its stops are sent on the next engine tick).
+     */
+    public boolean isPlaying() {
+        return index >= 0 && !song.isStopped();
+    }
+
+    /**
+     * Stops the song; the player gets stops for the sustained notes they still hear.
+     */
+    public void stop() {
+        song.stop();
+    }
+}
@@ -0,0 +1,133 @@
+package org.nc.VSE;
+
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The engine's personal playbacks, ticked as part of the engine tick.
+ * Starting and removing a playback are O(1): the list is unordered and a
+ * finished playback is swapped with the last one. Engine thread only.
+ */
+final class PersonalSongs {
+    private final List<PersonalPlayback> playing = new ArrayList<>();
+    private final SoundEvents events = new SoundEvents();
+    private final SoundOutput output;
+    EventTrace trace; // records what is sent, or null
+
+    // Sounds sent since the engine last collected them
+    long playsSent;
+    long stopsSent;
+
+    PersonalSongs(SoundOutput output) {
+        this.output = output;
+    }
+
+    void add(PersonalPlayback pb) {
+        pb.index = playing.size();
+        playing.add(pb);
+    }
+
+    boolean isEmpty() {
+        return playing.isEmpty();
+    }
+
+    int size() {
+        return playing.size();
+    }
+
+    void tick(long now) {
+        for (int i = 0; i < playing.size(); ) {
+            PersonalPlayback pb = playing.get(i);
+            boolean stillPlaying = true;
+            events.setSource(pb.song);
+            if (pb.song.isStopped()) {
+                stillPlaying = pb.song.tick(events, now); // sends the stops
+            } else if (pb.delay > 0) {
+                pb.delay--;
+            } else if (--pb.countdown <= 0) {
+                pb.countdown = pb.period;
+                stillPlaying = pb.song.tick(events, now);
+            }
+            if (!events.isEmpty()) {
+                deliver(pb);
+                events.clear();
+            }
+            if (stillPlaying) {
+                i++;
+            } else {
+                remove(i);
+            }
+        }
+    }
+
+    /**
+     * Stops the playbacks of players that went offline without stopping them.
+     */
+    void stopOffline() {
+        for (int i = 0; i < playing.size(); i++) {
+            PersonalPlayback pb = playing.get(i);
+            if (!pb.player.isOnline()) {
+                pb.stop();
+            }
+        }
+    }
+
+    /**
+     * Stops every playback right away, e.g. on shutdown.
+     */
+    void clear() {
+        for (int i = playing.size() - 1; i >= 0; i--) {
+            PersonalPlayback pb = playing.get(i);
+            stopsSent += pb.ledger.stopAll(pb.player, output, trace, null);
+            remove(i);
+        }
+    }
+
+    private void remove(int i) {
+        PersonalPlayback pb = playing.get(i);
+        PersonalPlayback last = playing.remove(playing.size() - 1);
+        if (last != pb) {
+            playing.set(i, last);
+            last.index = i;
+        }
+        pb.index = -1;
+        pb.song.ended();
+    }
+
+    private void deliver(PersonalPlayback pb) {
+        Player player = pb.player;
+        SoundLedger ledger = pb.ledger;
+        EventTrace trace = this.trace;
+        int traced = -1;
+        if (trace != null) {
+            trace.beginDeliver(null, events);
+            traced = trace.playerId(player);
+        }
+        for (int e = 0, count = events.size(); e < count; e++) {
+            Instrument instrument = events.instrument(e);
+            switch (events.kind(e)) {
+                case SoundEvents.STOP:
+                    if (!ledger.remove(instrument, events.category(e))) {
+                        continue;
+                    }
+                    output.stop(player, instrument.stopHandle(events.category(e)));
+                    stopsSent++;
+                    break;
+                case SoundEvents.PLAY_HELD:
+                    ledger.add(instrument, events.category(e));
+                    output.play(player, events.handle(e));
+                    playsSent++;
+                    break;
+                default:
+                    output.play(player, events.handle(e));
+                    playsSent++;
+                    break;
+            }
+            if (trace != null) {
+                trace.sent(traced, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.nc.VSE;
+
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Which channels each player is in, by UUID, so leaving all channels only
+ * visits that player's channels. Kept up to date by the channels themselves
+ * (Channel.addPlayer/removePlayer/clear). A positional channel lists the
+ * players still hearing a sustained note from it. Engine thread only.
+ */
+final class PlayerIndex {
+    private static final Channel[] NO_CHANNELS = new Channel[0];
+
+    private static final class Entry {
+        Player player; // the latest Player object seen for this UUID
+        final List<Channel> channels = new ArrayList<>(4);
+    }
+
+    private final Map<UUID, Entry> entries = new HashMap<>();
+
+    void joined(Player player, Channel channel) {
+        Entry e = entries.computeIfAbsent(player.getUniqueId(), id -> new Entry());
+        e.player = player;
+        if (!e.channels.contains(channel)) {
+            e.channels.add(channel);
+        }
+    }
+
+    void left(UUID id, Channel channel) {
+        Entry e = entries.get(id);
+        if (e != null && e.channels.remove(channel) && e.channels.isEmpty()) {
+            entries.remove(id);
+        }
+    }
+
+    /**
+     * A copy of the channels the player is in, safe to iterate while leaving them.
+     */
+    Channel[] channelsOf(UUID id) {
+        Entry e = entries.get(id);
+        return e == null ? NO_CHANNELS : e.channels.toArray(NO_CHANNELS);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * The players whose Player object is no longer online, e.g. ones that quit
+     * without being removed.
+     */
+    List<UUID> offline() {
+        List<UUID> gone = null;
+        for (Map.Entry<UUID, Entry> e : entries.entrySet()) {
+            if (!e.getValue().player.isOnline()) {
+                if (gone == null) {
+                    gone = new ArrayList<>();
+                }
+                gone.add(e.getKey());
+            }
+        }
+        return gone == null ? List.of() : gone;
+    }
+}
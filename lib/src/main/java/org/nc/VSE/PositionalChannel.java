@@ -0,0 +1,250 @@
+package org.nc.VSE;
+
+import net.kyori.adventure.sound.SoundStop;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A channel anchored to a Location, e.g. a stage or a jukebox.
+ *
+ * It has no members: whoever is near the anchor hears it, positioned at the
+ * anchor. Depending on the mode, each note is either played once through the
+ * world (Mode.WORLD, the client decides who hears it) or sent to the players
+ * the SpatialIndex finds within the audible radius (Mode.NEARBY).
+ *
+ * A sustained note is recorded in a ledger for every player it reached (for
+ * Mode.WORLD, the players within the radius), and its stop goes to exactly
+ * those players, even if they walked away since. clear() stops whatever
+ * they still hear. Those players are in the engine's PlayerIndex until
+ * their last note stops, so a player that quits (or is found offline by
+ * the sweep) is dropped like a member of a normal channel.
+ */
+public class PositionalChannel extends Channel {
+
+    public enum Mode {
+        /** One world-level playSound per note, regardless of how many listen. */
+        WORLD,
+        /** One playSound per note for each player within the radius. */
+        NEARBY
+    }
+
+    private final Location anchor;
+    private final World world;
+    private final double radius;
+    private final Mode mode;
+    private final SpatialIndex index;
+
+    // reused every tick for the players found near the anchor
+    private final List<Player> listeners = new ArrayList<>();
+
+    // players that were sent a sustained note and still hear one, by UUID and in a list for indexed loops
+    private final Map<UUID, Recipient> recipients = new HashMap<>();
+    private final List<Recipient> recipientList = new ArrayList<>();
+
+    public PositionalChannel(String channelName, Location anchor, double radius, Mode mode, SpatialIndex index) {
+        this(channelName, anchor, radius, mode, index, SoundOutput.direct());
+    }
+
+    public PositionalChannel(String channelName, Location anchor, double radius, Mode mode, SpatialIndex index,
+                             SoundOutput output) {
+        super(channelName, output);
+        if (anchor.getWorld() == null) {
+            throw new IllegalArgumentException("Positional channel '" + channelName + "' needs an anchor with a world");
+        }
+        this.anchor = anchor.clone();
+        this.world = anchor.getWorld();
+        this.radius = radius;
+        this.mode = mode;
+        this.index = index;
+    }
+
+    public Location getAnchor() {
+        return anchor.clone();
+    }
+
+    public double getRadius() {
+        return radius;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Positional channels are heard by distance, so players can't be added.
+     */
+    @Override
+    public void addPlayer(Player p) {
+        throw new UnsupportedOperationException("Players can't join positional channel '" + getChannelName() + "'");
+    }
+
+    /**
+     * A player that was sent sustained notes, and which of them it still hears.
+     */
+    private static final class Recipient {
+        final Player player;
+        final SoundLedger ledger = new SoundLedger();
+
+        Recipient(Player player) {
+            this.player = player;
+        }
+    }
+
+    private SoundLedger ledgerOf(Player p) {
+        Recipient r = recipients.get(p.getUniqueId());
+        if (r == null || r.player != p) {
+            // new, or rejoined with a new Player object: a rejoined client hears nothing, so start afresh
+            if (r != null) {
+                recipientList.remove(r);
+            }
+            r = new Recipient(p);
+            recipients.put(p.getUniqueId(), r);
+            recipientList.add(r);
+            if (playerIndex != null) {
+                playerIndex.joined(p, this);
+            }
+        }
+        return r.ledger;
+    }
+
+    /**
+     * Forgets a player that was sent sustained notes, e.g. one that quit. An
+     * online player gets stops for what it still hears; an offline one gets nothing.
+     */
+    @Override
+    public void removePlayer(UUID playerId) {
+        super.removePlayer(playerId);
+        Recipient r = recipients.remove(playerId);
+        if (r == null) {
+            return;
+        }
+        recipientList.remove(r);
+        if (r.player.isOnline()) {
+            stopsSent += r.ledger.stopAll(r.player, getOutput(), trace, getChannelName());
+        }
+        if (playerIndex != null) {
+            playerIndex.left(playerId, this);
+        }
+    }
+
+    /**
+     * How many sustained (sound, category) pairs the player still hears from this channel.
+     */
+    @Override
+    public int getSustainedCount(Player p) {
+        Recipient r = recipients.get(p.getUniqueId());
+        return r == null ? 0 : r.ledger.size();
+    }
+
+    @Override
+    protected void deliver(SoundEvents events) {
+        int count = events.size();
+        boolean needListeners = mode == Mode.NEARBY;
+        for (int e = 0; e < count && !needListeners; e++) {
+            needListeners = events.kind(e) == SoundEvents.PLAY_HELD;
+        }
+        if (needListeners) {
+            listeners.clear();
+            index.nearby(anchor, radius, listeners);
+        }
+
+        SoundOutput output = getOutput();
+        EventTrace trace = this.trace;
+        if (trace != null) {
+            trace.beginDeliver(getChannelName(), events);
+        }
+        boolean stopped = false;
+        for (int e = 0; e < count; e++) {
+            byte kind = events.kind(e);
+            if (kind == SoundEvents.STOP) {
+                Instrument instrument = events.instrument(e);
+                SoundStop stop = null;
+                for (int r = 0; r < recipientList.size(); r++) {
+                    Recipient recipient = recipientList.get(r);
+                    if (!recipient.ledger.remove(instrument, events.category(e))) {
+                        continue;
+                    }
+                    if (stop == null) {
+                        stop = instrument.stopHandle(events.category(e));
+                    }
+                    output.stop(recipient.player, stop);
+                    stopsSent++;
+                    stopped = true;
+                    if (trace != null) {
+                        trace.sent(trace.playerId(recipient.player), e);
+                    }
+                }
+            } else if (mode == Mode.WORLD) {
+                output.play(world, anchor, events.handle(e));
+                if (trace != null) {
+                    trace.sent(-1, e);
+                }
+                playsSent++;
+                if (kind == SoundEvents.PLAY_HELD) {
+                    for (int p = 0; p < listeners.size(); p++) {
+                        ledgerOf(listeners.get(p)).add(events.instrument(e), events.category(e));
+                    }
+                }
+            } else {
+                for (int p = 0; p < listeners.size(); p++) {
+                    Player player = listeners.get(p);
+                    if (kind == SoundEvents.PLAY_HELD) {
+                        ledgerOf(player).add(events.instrument(e), events.category(e));
+                    }
+                    output.play(player, anchor, events.handle(e));
+                    if (trace != null) {
+                        trace.sent(trace.playerId(player), e);
+                    }
+                }
+                playsSent += listeners.size();
+            }
+        }
+        listeners.clear();
+        if (stopped) {
+            dropSilentRecipients();
+        }
+    }
+
+    /**
+     * Forgets players that no longer hear anything from this channel.
+     */
+    private void dropSilentRecipients() {
+        for (int r = recipientList.size() - 1; r >= 0; r--) {
+            Recipient recipient = recipientList.get(r);
+            if (recipient.ledger.size() == 0) {
+                int last = recipientList.size() - 1;
+                recipientList.set(r, recipientList.get(last));
+                recipientList.remove(last);
+                recipients.remove(recipient.player.getUniqueId());
+                if (playerIndex != null) {
+                    playerIndex.left(recipient.player.getUniqueId(), this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every song, and stops what each player that was sent a sustained note still hears.
+     */
+    @Override
+    public void clear() {
+        SoundOutput output = getOutput();
+        for (int r = 0; r < recipientList.size(); r++) {
+            Recipient recipient = recipientList.get(r);
+            stopsSent += recipient.ledger.stopAll(recipient.player, output, trace, getChannelName());
+            if (playerIndex != null) {
+                playerIndex.left(recipient.player.getUniqueId(), this);
+            }
+        }
+        recipients.clear();
+        recipientList.clear();
+        super.clear();
+    }
+}
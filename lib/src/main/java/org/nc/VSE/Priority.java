@@ -0,0 +1,19 @@
+package org.nc.VSE;
+
+/**
+ * How important a channel's or song's sounds are when the engine is over its
+ * tick budget, see MultiChannelEngine.setTickBudget.
+ */
+public enum Priority {
+    /** Gameplay cues (countdowns, hits, alarms): always played in full. */
+    CUE,
+    /** Music: plays in full unless a quiet volume is set for it. */
+    NORMAL,
+    /**
+     * Background sound: quiet notes are skipped, and the song's tick is
+     * deferred every other tick while the engine is over budget. A deferred
+     * song stays on its timeline: the next tick plays the missed one late,
+     * as its LatePolicy says.
+     */
+    AMBIENT
+}
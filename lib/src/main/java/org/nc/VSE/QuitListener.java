@@ -0,0 +1,23 @@
+package org.nc.VSE;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * Takes quitting players out of every channel, see MultiChannelEngine.registerQuitListener.
+ */
+final class QuitListener implements Listener {
+    private final EngineCommands commands;
+
+    QuitListener(EngineCommands commands) {
+        this.commands = commands;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(PlayerQuitEvent event) {
+        // by UUID, so the queued command doesn't hold on to the Player
+        commands.removePlayerFromAllChannels(event.getPlayer().getUniqueId());
+    }
+}
@@ -0,0 +1,269 @@
+package org.nc.VSE;
+
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import net.kyori.adventure.sound.Sound;
+import net.kyori.adventure.sound.SoundStop;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Folia backend. The engine tick (sequencing, ledgers) runs on the global
+ * region thread and never touches a Player. The sounds it produces are
+ * collected per player and, at the end of the tick, handed to each player's
+ * entity scheduler as one task, so they are sent on the region thread that
+ * owns that player. World-level sounds go to the region owning their location.
+ */
+public class RegionEngineScheduler implements EngineScheduler {
+    // How many flushes a player's buffers are kept without any sound for them
+    private static final int OUTBOX_SWEEP_TICKS = 200;
+
+    private final Plugin plugin;
+    private final RegionSoundOutput output = new RegionSoundOutput();
+    private volatile ScheduledTask task;
+
+    public RegionEngineScheduler(Plugin plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public synchronized void start(Runnable tick) {
+        if (task != null) return;
+        // Folia doesn't allow an initial delay of 0
+        task = Bukkit.getGlobalRegionScheduler().runAtFixedRate(plugin, t -> {
+            tick.run();
+            output.flush();
+        }, 1L, 1L);
+    }
+
+    /**
+     * The sounds still collected are flushed on the global region thread, where
+     * they were collected: right away if called there, else in a task handed to it.
+     */
+    @Override
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        if (Bukkit.isGlobalTickThread()) {
+            output.flushLast();
+        } else {
+            Bukkit.getGlobalRegionScheduler().execute(plugin, output::flushLast);
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return task != null;
+    }
+
+    @Override
+    public SoundOutput getOutput() {
+        return output;
+    }
+
+    /**
+     * No: the global region thread must not read players owned by other regions.
+     */
+    @Override
+    public boolean canReadPlayers() {
+        return false;
+    }
+
+    private final class RegionSoundOutput implements SoundOutput {
+        // Only used on the global region thread
+        private final Map<Player, Outbox> outboxes = new IdentityHashMap<>();
+        private final ArrayList<Outbox> all = new ArrayList<>();
+        private final ArrayList<Outbox> filled = new ArrayList<>(); // got sounds since their last hand-off
+        private int flushes;
+
+        private PendingSounds pendingFor(Player p) {
+            Outbox box = outboxes.get(p);
+            if (box == null) {
+                box = new Outbox(p);
+                outboxes.put(p, box);
+                all.add(box);
+            }
+            if (!box.queued) {
+                box.queued = true;
+                filled.add(box);
+            }
+            return box.filling;
+        }
+
+        @Override
+        public void play(Player p, Sound sound) {
+            pendingFor(p).add(sound, null, null);
+        }
+
+        @Override
+        public void play(Player p, Location at, Sound sound) {
+            pendingFor(p).add(sound, at, null);
+        }
+
+        @Override
+        public void play(World world, Location at, Sound sound) {
+            Bukkit.getRegionScheduler().execute(plugin, at,
+                    () -> world.playSound(sound, at.getX(), at.getY(), at.getZ()));
+        }
+
+        @Override
+        public void stop(Player p, SoundStop stop) {
+            pendingFor(p).add(null, null, stop);
+        }
+
+        /**
+         * Hands every player's collected sounds to that player's own scheduler.
+         * A player whose previous batch hasn't been sent yet keeps collecting
+         * and is handed the lot on a later flush, so their sounds stay in order.
+         */
+        void flush() {
+            flushes++;
+            int kept = 0;
+            for (int i = 0; i < filled.size(); i++) {
+                Outbox box = filled.get(i);
+                if (box.handOff()) {
+                    box.queued = false;
+                } else {
+                    filled.set(kept++, box);
+                }
+            }
+            while (filled.size() > kept) {
+                filled.remove(filled.size() - 1);
+            }
+            if (flushes % OUTBOX_SWEEP_TICKS == 0) {
+                sweep();
+            }
+        }
+
+        /**
+         * The last flush, when the engine stops: a player whose previous batch
+         * is still being sent gets the rest in a task of its own, queued after it.
+         */
+        void flushLast() {
+            flush();
+            for (int i = 0; i < filled.size(); i++) {
+                Outbox box = filled.get(i);
+                PendingSounds rest = box.filling;
+                box.filling = new PendingSounds();
+                box.queued = false;
+                box.player.getScheduler().execute(plugin, () -> rest.sendTo(box.player), null, 1L);
+            }
+            filled.clear();
+        }
+
+        /**
+         * Drops the buffers of players that got no sound for a while, e.g. because they left.
+         */
+        private void sweep() {
+            for (int i = all.size() - 1; i >= 0; i--) {
+                Outbox box = all.get(i);
+                if (flushes - box.lastHandOff >= OUTBOX_SWEEP_TICKS && !box.queued && !box.sending) {
+                    outboxes.remove(box.player);
+                    all.set(i, all.get(all.size() - 1));
+                    all.remove(all.size() - 1);
+                }
+            }
+        }
+
+        /**
+         * One player's two buffers: the one the tick fills and the one being
+         * sent on the player's region thread. They swap on each hand-off, so
+         * the steady state allocates nothing but Folia's own task.
+         */
+        private final class Outbox {
+            final Player player;
+            PendingSounds filling = new PendingSounds();
+            PendingSounds sent = new PendingSounds(); // only touched by the player's region while sending
+            volatile boolean sending;
+            boolean queued; // in filled
+            int lastHandOff;
+            private final Runnable send = this::send;
+            private final Runnable retired = this::retired;
+
+            Outbox(Player player) {
+                this.player = player;
+                this.lastHandOff = flushes;
+            }
+
+            /**
+             * Swaps the buffers and schedules the send; false if the last batch is still being sent.
+             */
+            boolean handOff() {
+                if (sending) {
+                    return false;
+                }
+                PendingSounds batch = filling;
+                filling = sent;
+                sent = batch;
+                lastHandOff = flushes;
+                sending = true;
+                if (!player.getScheduler().execute(plugin, send, retired, 1L)) {
+                    retired(); // the player already left
+                }
+                return true;
+            }
+
+            private void send() {
+                sent.sendTo(player);
+                sent.clear();
+                sending = false;
+            }
+
+            private void retired() {
+                sent.clear();
+                sending = false;
+            }
+        }
+    }
+
+    /**
+     * One player's sounds, in the order they were produced.
+     */
+    private static final class PendingSounds {
+        private Sound[] sounds = new Sound[8];
+        private Location[] locations = new Location[8];
+        private SoundStop[] stops = new SoundStop[8]; // set for a stop, sounds[i] is then null
+        private int size;
+
+        void add(Sound sound, Location at, SoundStop stop) {
+            if (size == sounds.length) {
+                int capacity = size * 2;
+                sounds = Arrays.copyOf(sounds, capacity);
+                locations = Arrays.copyOf(locations, capacity);
+                stops = Arrays.copyOf(stops, capacity);
+            }
+            sounds[size] = sound;
+            locations[size] = at;
+            stops[size] = stop;
+            size++;
+        }
+
+        void sendTo(Player p) {
+            for (int i = 0; i < size; i++) {
+                if (stops[i] != null) {
+                    p.stopSound(stops[i]);
+                } else if (locations[i] != null) {
+                    p.playSound(sounds[i], locations[i].getX(), locations[i].getY(), locations[i].getZ());
+                } else {
+                    p.playSound(sounds[i], Sound.Emitter.self());
+                }
+            }
+        }
+
+        void clear() {
+            Arrays.fill(sounds, 0, size, null);
+            Arrays.fill(locations, 0, size, null);
+            Arrays.fill(stops, 0, size, null);
+            size = 0;
+        }
+    }
+}
@@ -1,24 +1,75 @@
 package org.nc.VSE;
     import org.bukkit.entity.Player;
-import org.bukkit.scheduler.BukkitRunnable;
 import org.bukkit.plugin.Plugin;
 
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+
+/**
+ * Plays one song to single players. Each player gets a PersonalPlayback in a
+ * MultiChannelEngine: a cursor over the song's shared compiled timeline,
+ * ticked by the engine's one loop. Call it from the engine's thread.
+ */
 public class SingleSongEngine {
-    private final Plugin plugin;
+    // Engines made for the plugin-only constructor, one per plugin. Weak both
+    // ways (the engine holds its plugin), so a reloaded plugin's old engine and
+    // classloader can be collected once nothing plays on them; guarded by the class.
+    private static final Map<Plugin, WeakReference<MultiChannelEngine>> SHARED = new WeakHashMap<>();
+
+    private final MultiChannelEngine engine;
     private final Song song;
-    private int currentTick = 0;
-    private boolean playing = false;
+    private final long delay;
+    private final Map<UUID, PersonalPlayback> playing = new HashMap<>();
 
+    /**
+     * Plays in an engine shared by every SingleSongEngine made this way for
+     * the plugin; pass the plugin's MultiChannelEngine instead to share its tick.
+     * @param delay ticks before the song starts, for start(player)
+     */
     public SingleSongEngine(Plugin plugin, Song song,int delay) {
-        this.plugin = plugin;
+        this(sharedEngine(plugin), song, delay);
+    }
+
+    public SingleSongEngine(MultiChannelEngine engine, Song song) {
+        this(engine, song, 0);
+    }
+
+    /**
+     * @param delay ticks before the song starts, for start(player)
+     */
+    public SingleSongEngine(MultiChannelEngine engine, Song song, long delay) {
+        this.engine = engine;
         this.song = song; 
+        this.delay = delay;
+    }
+
+    private static synchronized MultiChannelEngine sharedEngine(Plugin plugin) {
+        // a disabled plugin's engine no longer ticks; a reloaded plugin gets a new one
+        SHARED.keySet().removeIf(p -> !p.isEnabled());
+        WeakReference<MultiChannelEngine> ref = SHARED.get(plugin);
+        MultiChannelEngine engine = ref == null ? null : ref.get();
+        if (engine == null) {
+            engine = new MultiChannelEngine(plugin);
+            SHARED.put(plugin, new WeakReference<>(engine));
+        }
+        return engine;
     }
 
     /**
-     * Starts playing the song to the given player immediately (no delay).
+     * Called by MultiChannelEngine.shutdown, so a shut down engine isn't handed out again.
+     */
+    static synchronized void forget(MultiChannelEngine engine) {
+        SHARED.values().removeIf(ref -> ref.get() == engine);
+    }
+
+    /**
+     * Starts playing the song to the given player after this engine's delay (0 unless one was given).
      */
     public void start(Player player) {
-        start(player, 0L, 1L);
+        start(player, delay, 1L);
     }
 
     /**
@@ -32,40 +83,49 @@ public class SingleSongEngine {
 
     /**
      * Starts playing the song to the given player after an initial delay,
-     * then checks and plays notes every period ticks.
+     * then advances one song tick every period ticks. Starting it again for
+     * the same player restarts it.
      *
      * @param player     The player who should hear the song
      * @param delayTicks How many ticks before the song starts
-     * @param period     How many ticks between each check for note playback
+     * @param period     How many ticks between each check for note playback,
+     *                   from 1 to Integer.MAX_VALUE
      */
     public void start(Player player, long delayTicks, long period) {
-        playing = true;
-        new BukkitRunnable() {
-            @Override
-            public void run() {
-                if (!playing) {
-                    cancel();
-                    return;
-                }
-                // Play any notes matching the current tick
-                for (Note note : song.getNotes()) {
-                    if (note.getStartTick() == currentTick) {
-                        player.playSound(
-                            player.getLocation(),
-                            note.getInstrument(),
-                            note.getVolume(),
-                            note.getPitch()
-                        );
-                    }
-                }
-                currentTick++;
-            }
-        }.runTaskTimer(plugin, delayTicks, period);
+        if (period <= 0 || period > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("period must be from 1 to " + Integer.MAX_VALUE + ", got " + period);
+        }
+        UUID id = player.getUniqueId();
+        // once it ends, forget it unless a newer playback took its place
+        PersonalPlayback started = engine.playTo(player, song.compile(), false, delayTicks, (int) period,
+                () -> playing.computeIfPresent(id, (k, pb) -> pb.isPlaying() ? pb : null));
+        PersonalPlayback previous = playing.put(id, started);
+        if (previous != null) {
+            previous.stop();
+        }
+    }
+
+    /**
+     * Stops the song for one player.
+     */
+    public void stop(Player player) {
+        PersonalPlayback pb = playing.remove(player.getUniqueId());
+        if (pb != null) {
+            pb.stop();
+        }
     }
 
+    /**
+     * Stops the song for every player.
+     */
     public void stop() {
-        playing = false;
-        currentTick = 0;
+        for (PersonalPlayback pb : playing.values()) {
+            pb.stop();
+        }
+        playing.clear();
     }
-}
 
+    public boolean isPlaying(Player player) {
+        return playing.containsKey(player.getUniqueId());
+    }
+}
@@ -0,0 +1,41 @@
+package org.nc.VSE;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event for an engine tick that took longer than its threshold
+ * (5 ms by default, see MultiChannelEngine.setSlowTickThreshold).
+ *
+ * The engine times the tick itself and only creates the event for a slow
+ * tick, so a normal tick allocates nothing for it, with or without a
+ * recording. The event is committed at the end of the tick, with the
+ * tick's length in Tick Duration.
+ */
+@Name("org.nc.VSE.SlowTick")
+@Label("VSE Slow Tick")
+@Category("VSE")
+@Description("A MultiChannelEngine tick that took long")
+final class SlowTickEvent extends jdk.jfr.Event {
+    static final EventType TYPE = EventType.getEventType(SlowTickEvent.class);
+
+    @Label("Tick Duration")
+    @Timespan
+    long tickNanos;
+
+    @Label("Channels")
+    int channels;
+
+    @Label("Commands Run")
+    int commands;
+
+    @Label("Sounds Played")
+    long playsSent;
+
+    @Label("Stops Sent")
+    long stopsSent;
+}
@@ -4,9 +4,17 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class Song {
+    /**
+     * Song ticks per beat. The tempo is in beats per minute, so the default
+     * tempo of 120 gives 20 song ticks per second, the server tick rate.
+     */
+    public static final int TICKS_PER_BEAT = 10;
+    public static final int DEFAULT_TEMPO = 120;
+
     private final String title;
     private final int tempo;
     private final List<Note> notes;
+    private volatile CompiledSong compiled;
 
     public Song(String title, int tempo) {
         this.title = title;
@@ -16,12 +24,17 @@ public class Song {
 
     public void addNote(Note note) {
         notes.add(note);
+        compiled = null;
     }
 
     public String getTitle() {
         return title;
     }
 
+    /**
+     * Beats per minute (see TICKS_PER_BEAT). It sets the spacing of song ticks
+     * for WALL_CLOCK playback; SERVER_TICKS playback plays one tick per server tick.
+     */
     public int getTempo() {
         return tempo;
     }
@@ -29,4 +42,18 @@ public class Song {
     public List<Note> getNotes() {
         return notes;
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the tick-indexed form of this song, building it on first use.
+     * The result is cached until the note list changes, so every ActiveSong
+     * of this Song shares the same index.
+     */
+    public CompiledSong compile() {
+        CompiledSong c = compiled;
+        if (c == null || c.getNoteCount() != notes.size()) {
+            c = CompiledSong.of(title, tempo, notes);
+            compiled = c;
+        }
+        return c;
+    }
+}
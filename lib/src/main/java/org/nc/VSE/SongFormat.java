@@ -0,0 +1,207 @@
+package org.nc.VSE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The compact binary song format (.vse), and the methods to write and load it.
+ *
+ * A file is the tick index of a song laid out so it can be played straight
+ * from a memory-mapped buffer (see MappedSong). All values are little-endian:
+ *
+ * <pre>
+ * header      int magic "VSEB", u16 version, u16 flags, int tempo, int maxEndTick,
+ *             int noteCount, int stopCount, int paletteSize, int dataOffset
+ * strings     title, then per palette entry: u8 flags (1 = Sound, 2 = custom key)
+ *             and the Sound's key and/or the custom key (u16 length + UTF-8 each)
+ * dataOffset  int[maxEndTick + 2]  start index: notes starting on tick t are
+ *                                  the notes startIndex[t] .. startIndex[t + 1] - 1
+ *             int[maxEndTick + 2]  stop index into the stop notes
+ *             int[stopCount]       stop notes
+ *             8 bytes per note     u16 palette index, u16 pitch (1/16384),
+ *                                  int category:4 | volume (1/64):8 | duration:20
+ * </pre>
+ *
+ * Notes are stored in start order, so a note's start tick is implied by the
+ * start index and only its duration (endTick - startTick) is written.
+ */
+public final class SongFormat {
+    static final int MAGIC = 0x42455356; // "VSEB" read little-endian
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int NOTE_SIZE = 8;
+
+    static final int HAS_SOUND = 1;
+    static final int HAS_KEY = 2;
+
+    static final float PITCH_UNIT = 1f / 16384;
+    static final float VOLUME_UNIT = 1f / 64;
+    static final int MAX_DURATION = (1 << 20) - 1;
+
+    private SongFormat() {
+    }
+
+    public static void write(Song song, Path file) throws IOException {
+        write(song.compile(), file);
+    }
+
+    /**
+     * Writes any song timeline, e.g. a CompiledSong, to a file. Pitch and volume
+     * are quantized on the way (see the format above).
+     */
+    public static void write(SongTimeline song, Path file) throws IOException {
+        ByteBuffer data = encode(song);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+    }
+
+    /**
+     * Maps a song file into memory. The file is not read up front: notes are
+     * read from the mapping as the song plays.
+     */
+    public static MappedSong load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new MappedSong(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Reads a song from a buffer holding a whole song file, from its position on.
+     * The buffer is used as is, not copied.
+     */
+    public static MappedSong read(ByteBuffer data) throws IOException {
+        return new MappedSong(data);
+    }
+
+    /**
+     * Reads a whole song file once and checks its tick index and every note,
+     * e.g. for files from untrusted sources or in an import step. load and
+     * read only check the header, so a corrupt note would otherwise only fail
+     * when it plays.
+     */
+    public static void verify(MappedSong song) throws IOException {
+        song.verify();
+    }
+
+    /**
+     * Encodes a song timeline into a new buffer, ready to be written.
+     */
+    public static ByteBuffer encode(SongTimeline song) {
+        int maxEndTick = song.getMaxEndTick();
+        int noteCount = song.getNoteCount();
+
+        // (1) renumber the played notes in start order
+        int[] order = new int[noteCount];
+        int[] newIndex = new int[noteCount];
+        Arrays.fill(newIndex, -1);
+        int played = 0;
+        int stopCount = 0;
+        for (int t = 0; t <= maxEndTick; t++) {
+            for (int i = song.startsFrom(t), end = song.startsTo(t); i < end; i++) {
+                int note = song.startNote(i);
+                newIndex[note] = played;
+                order[played++] = note;
+            }
+            stopCount += song.stopsTo(t) - song.stopsFrom(t);
+        }
+
+        // (2) strings
+        byte[] title = utf8(song.getTitle() == null ? "" : song.getTitle());
+        int paletteSize = song.getPaletteSize();
+        byte[][] soundKeys = new byte[paletteSize][];
+        byte[][] customKeys = new byte[paletteSize][];
+        int stringBytes = 2 + title.length;
+        for (int p = 0; p < paletteSize; p++) {
+            Instrument instrument = song.getPaletteEntry(p);
+            stringBytes++;
+            if (instrument.getSound() != null) {
+                soundKeys[p] = utf8(instrument.getSound().getKey().toString());
+                stringBytes += 2 + soundKeys[p].length;
+            }
+            if (instrument.getKey() != null) {
+                customKeys[p] = utf8(instrument.getKey());
+                stringBytes += 2 + customKeys[p].length;
+            }
+        }
+        int dataOffset = (HEADER_SIZE + stringBytes + 7) & ~7;
+        long size = dataOffset + 4L * (2L * (maxEndTick + 2) + stopCount) + (long) NOTE_SIZE * played;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Song '" + song.getTitle() + "' is too large for one song file");
+        }
+
+        ByteBuffer out = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+
+        // (3) header and strings
+        out.putInt(MAGIC).putShort((short) VERSION).putShort((short) 0)
+                .putInt(song.getTempo()).putInt(maxEndTick).putInt(played).putInt(stopCount)
+                .putInt(paletteSize).putInt(dataOffset);
+        putString(out, title);
+        for (int p = 0; p < paletteSize; p++) {
+            out.put((byte) ((soundKeys[p] != null ? HAS_SOUND : 0) | (customKeys[p] != null ? HAS_KEY : 0)));
+            if (soundKeys[p] != null) putString(out, soundKeys[p]);
+            if (customKeys[p] != null) putString(out, customKeys[p]);
+        }
+        out.position(dataOffset);
+
+        // (4) start index, stop index and stop notes
+        int started = 0;
+        for (int t = 0; t <= maxEndTick; t++) {
+            out.putInt(started);
+            started += song.startsTo(t) - song.startsFrom(t);
+        }
+        out.putInt(started);
+        int stopped = 0;
+        for (int t = 0; t <= maxEndTick; t++) {
+            out.putInt(stopped);
+            stopped += song.stopsTo(t) - song.stopsFrom(t);
+        }
+        out.putInt(stopped);
+        for (int t = 0; t <= maxEndTick; t++) {
+            for (int i = song.stopsFrom(t), end = song.stopsTo(t); i < end; i++) {
+                out.putInt(newIndex[song.stopNote(i)]);
+            }
+        }
+
+        // (5) note records
+        for (int n = 0; n < played; n++) {
+            int note = order[n];
+            int duration = song.isSustained(note) ? song.getEndTick(note) - song.getStartTick(note) : 0;
+            if (duration > MAX_DURATION) {
+                throw new IllegalArgumentException("Note " + note + " of song '" + song.getTitle()
+                        + "' lasts longer than " + MAX_DURATION + " ticks");
+            }
+            int pitch = quantize(song.getPitch(note), PITCH_UNIT, 0xFFFF);
+            int volume = quantize(song.getVolume(note), VOLUME_UNIT, 0xFF);
+            out.putShort((short) song.getInstrumentIndex(note))
+                    .putShort((short) pitch)
+                    .putInt(song.getCategory(note).ordinal() << 28 | volume << 20 | duration);
+        }
+        return out.flip();
+    }
+
+    private static int quantize(float value, float unit, int max) {
+        return Math.max(0, Math.min(max, Math.round(value / unit)));
+    }
+
+    private static byte[] utf8(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("String too long for a song file: " + s.substring(0, 32) + "...");
+        }
+        return bytes;
+    }
+
+    private static void putString(ByteBuffer out, byte[] bytes) {
+        out.putShort((short) bytes.length).put(bytes);
+    }
+}
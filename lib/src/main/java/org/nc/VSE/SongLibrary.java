@@ -0,0 +1,238 @@
+package org.nc.VSE;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Songs by key, loaded on first use from a SongSource and kept in a cache
+ * bounded by their estimated size (SongTimeline.getEstimatedBytes).
+ *
+ * When the cache is over its bound, the least recently used songs are
+ * dropped, except those pinned: a song played through
+ * MultiChannelEngine.playSong(channel, songKey, ...) stays pinned until
+ * its last ActiveSong ends. Loading runs on the library's executor, so
+ * playing or prefetching a song never blocks the calling thread on I/O.
+ * All methods are thread-safe.
+ */
+public final class SongLibrary {
+    private final SongSource source;
+    private final long maxBytes;
+    private final Executor loader;
+
+    // access-ordered: iteration starts at the least recently used song
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<SongTimeline>> loading = new HashMap<>();
+    private long loadedBytes;
+
+    /**
+     * A cached song. acquire hands it out as the pin, so a release always goes
+     * to the entry it pinned, even after that was replaced or invalidated.
+     */
+    static final class Entry {
+        final SongTimeline song;
+        final long bytes;
+        int pins;
+
+        Entry(SongTimeline song) {
+            this.song = song;
+            this.bytes = song.getEstimatedBytes();
+        }
+    }
+
+    /**
+     * Loads songs on the common ForkJoinPool.
+     */
+    public SongLibrary(SongSource source, long maxBytes) {
+        this(source, maxBytes, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param loader runs the SongSource, e.g. a small I/O pool or the server's async scheduler
+     */
+    public SongLibrary(SongSource source, long maxBytes, Executor loader) {
+        this.source = source;
+        this.maxBytes = maxBytes;
+        this.loader = loader;
+    }
+
+    /**
+     * The song if it is loaded, without loading it; null otherwise.
+     */
+    public synchronized SongTimeline getIfLoaded(String key) {
+        Entry e = entries.get(key);
+        return e == null ? null : e.song;
+    }
+
+    /**
+     * The song, loading it if needed. Blocks while loading, so don't call it on the main thread.
+     */
+    public SongTimeline get(String key) throws IOException {
+        try {
+            return prefetch(key).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Starts loading a song in the background, if it isn't loaded or loading already.
+     * The future fails with an UncheckedIOException if the song can't be loaded.
+     */
+    public CompletableFuture<SongTimeline> prefetch(String key) {
+        CompletableFuture<SongTimeline> future;
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e != null) {
+                return CompletableFuture.completedFuture(e.song);
+            }
+            future = loading.get(key);
+            if (future != null) {
+                return future;
+            }
+            future = new CompletableFuture<>();
+            loading.put(key, future);
+        }
+
+        CompletableFuture<SongTimeline> result = future;
+        loader.execute(() -> {
+            SongTimeline song;
+            try {
+                song = source.load(key);
+                if (song == null) {
+                    throw new NoSuchFileException("No song '" + key + "'");
+                }
+            } catch (IOException | RuntimeException ex) {
+                synchronized (this) {
+                    loading.remove(key);
+                }
+                result.completeExceptionally(ex instanceof IOException
+                        ? new UncheckedIOException((IOException) ex) : ex);
+                return;
+            }
+            synchronized (this) {
+                loading.remove(key);
+                song = insert(key, song).song;
+                evict();
+            }
+            result.complete(song);
+        });
+        return result;
+    }
+
+    /**
+     * Adds or replaces a song that was built elsewhere, e.g. from Song.compile().
+     * Songs already playing keep their old version, and their pins with it.
+     */
+    public synchronized void put(String key, SongTimeline song) {
+        Entry old = entries.remove(key);
+        Entry e = new Entry(song);
+        if (old != null) {
+            loadedBytes -= old.bytes;
+        }
+        entries.put(key, e);
+        loadedBytes += e.bytes;
+        evict();
+    }
+
+    /**
+     * Drops a song from the cache; it is loaded again on next use.
+     * Songs already playing keep the dropped version until they end.
+     */
+    public synchronized void invalidate(String key) {
+        Entry e = entries.remove(key);
+        if (e != null) {
+            loadedBytes -= e.bytes;
+        }
+    }
+
+    public synchronized boolean isPinned(String key) {
+        Entry e = entries.get(key);
+        return e != null && e.pins > 0;
+    }
+
+    /**
+     * Estimated bytes of all loaded songs, pinned ones included.
+     */
+    public synchronized long getLoadedBytes() {
+        return loadedBytes;
+    }
+
+    public synchronized int getLoadedCount() {
+        return entries.size();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Pins a song for playback and returns the pinned entry, to pass to release.
+     * If it isn't loaded, loaded (a song the caller already got from prefetch) is
+     * put back into the cache; if that is null too, nothing is pinned and null is returned.
+     */
+    synchronized Entry acquire(String key, SongTimeline loaded) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            if (loaded == null) {
+                return null;
+            }
+            e = insert(key, loaded);
+        }
+        e.pins++;
+        evict();
+        return e;
+    }
+
+    /**
+     * Undoes one acquire. An entry that was replaced or invalidated meanwhile
+     * is no longer cached, so its pins no longer matter to eviction.
+     */
+    synchronized void release(Entry e) {
+        if (e.pins > 0) {
+            e.pins--;
+            if (e.pins == 0) {
+                evict();
+            }
+        }
+    }
+
+    /**
+     * Adds a song unless one is already cached under the key; returns the cached entry.
+     * The caller evicts afterwards.
+     */
+    private Entry insert(String key, SongTimeline song) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            e = new Entry(song);
+            entries.put(key, e);
+            loadedBytes += e.bytes;
+        }
+        return e;
+    }
+
+    /**
+     * Drops unpinned songs, least recently used first, until the cache fits its bound.
+     */
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (loadedBytes > maxBytes && it.hasNext()) {
+            Entry e = it.next();
+            if (e.pins == 0) {
+                it.remove();
+                loadedBytes -= e.bytes;
+            }
+        }
+    }
+}
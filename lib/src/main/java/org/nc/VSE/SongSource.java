@@ -0,0 +1,72 @@
+package org.nc.VSE;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Where a SongLibrary loads songs from, by key.
+ *
+ * load is called off the main thread and may block on I/O.
+ */
+@FunctionalInterface
+public interface SongSource {
+
+    /**
+     * Loads the song stored under key, or returns null if there is none.
+     */
+    SongTimeline load(String key) throws IOException;
+
+    /**
+     * Tries this source first, then fallback.
+     */
+    default SongSource or(SongSource fallback) {
+        return key -> {
+            SongTimeline song = load(key);
+            return song != null ? song : fallback.load(key);
+        };
+    }
+
+    /**
+     * Songs in a directory: key.vse (mapped, see SongFormat) or else key.nbs (imported).
+     * Keys may contain '/' for subdirectories but can't leave the directory.
+     */
+    static SongSource directory(Path dir) {
+        Path root = dir.toAbsolutePath().normalize();
+        NbsImporter importer = new NbsImporter();
+        return key -> {
+            Path vse = root.resolve(key + ".vse").normalize();
+            Path nbs = root.resolve(key + ".nbs").normalize();
+            if (!vse.startsWith(root) || !nbs.startsWith(root)) {
+                throw new IOException("Song key '" + key + "' points outside " + root);
+            }
+            if (Files.isRegularFile(vse)) {
+                return SongFormat.load(vse);
+            }
+            if (Files.isRegularFile(nbs)) {
+                return importer.read(nbs);
+            }
+            return null;
+        };
+    }
+
+    /**
+     * Song files (.vse) bundled as resources, e.g. prefix "songs/" in the plugin jar.
+     * A resource is read into a direct buffer and played from there.
+     */
+    static SongSource resources(ClassLoader loader, String prefix) {
+        return key -> {
+            try (InputStream in = loader.getResourceAsStream(prefix + key + ".vse")) {
+                if (in == null) {
+                    return null;
+                }
+                byte[] bytes = in.readAllBytes();
+                ByteBuffer data = ByteBuffer.allocateDirect(bytes.length);
+                data.put(bytes).flip();
+                return SongFormat.read(data);
+            }
+        };
+    }
+}
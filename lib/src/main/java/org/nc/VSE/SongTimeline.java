@@ -0,0 +1,141 @@
+package org.nc.VSE;
+
+import org.bukkit.SoundCategory;
+
+import java.util.function.IntConsumer;
+
+/**
+ * The read-only, tick-indexed view of a song that ActiveSong plays.
+ *
+ * Notes are addressed by index. The start and stop events of a tick are
+ * ranges of an event list: the notes starting on tick t are startNote(i)
+ * for startsFrom(t) <= i < startsTo(t), and likewise for stops. Only
+ * sustained notes have a stop event.
+ *
+ * CompiledSong keeps this data on the heap; MappedSong reads it straight
+ * from a song file mapped into memory. Implementations must be safe to
+ * read from several threads at once.
+ */
+public interface SongTimeline {
+
+    String getTitle();
+
+    /**
+     * Beats per minute, see Song.TICKS_PER_BEAT.
+     */
+    int getTempo();
+
+    /**
+     * Wall-clock length of one song tick at this song's tempo; a tempo of 0 or less
+     * falls back to Song.DEFAULT_TEMPO.
+     */
+    default long getNanosPerTick() {
+        int tempo = getTempo();
+        int bpm = tempo > 0 ? tempo : Song.DEFAULT_TEMPO;
+        return 60_000_000_000L / ((long) bpm * Song.TICKS_PER_BEAT);
+    }
+
+    int getNoteCount();
+
+    int getStartTick(int i);
+
+    int getEndTick(int i);
+
+    float getPitch(int i);
+
+    float getVolume(int i);
+
+    SoundCategory getCategory(int i);
+
+    /**
+     * Only multi-tick notes are held and need a stop at their endTick.
+     */
+    default boolean isSustained(int i) {
+        return getEndTick(i) > getStartTick(i);
+    }
+
+    /**
+     * Palette index of the note's instrument.
+     */
+    int getInstrumentIndex(int i);
+
+    default Instrument getInstrument(int i) {
+        return getPaletteEntry(getInstrumentIndex(i));
+    }
+
+    /**
+     * The Adventure sound that plays note i in category. CompiledSong builds
+     * these once, when it is compiled, and returns the same object every time;
+     * by default a new one is built per call.
+     */
+    default net.kyori.adventure.sound.Sound getSoundHandle(int i, SoundCategory category) {
+        return getInstrument(i).handle(category, getVolume(i), getPitch(i));
+    }
+
+    int getPaletteSize();
+
+    Instrument getPaletteEntry(int paletteIndex);
+
+    /**
+     * The highest endTick in the song; the song is done once it has passed this tick.
+     */
+    int getMaxEndTick();
+
+    int startsFrom(int tick);
+
+    int startsTo(int tick);
+
+    int startNote(int i);
+
+    int stopsFrom(int tick);
+
+    int stopsTo(int tick);
+
+    int stopNote(int i);
+
+    /**
+     * How many ticks from tick on have no start or stop event, looking at most
+     * max ticks ahead. Never counts getMaxEndTick() itself, where the song ends or loops.
+     * The engine skips that many ticks of a song without visiting them.
+     */
+    default int emptyTicksFrom(int tick, int max) {
+        int end = Math.min(tick + max, getMaxEndTick());
+        int t = tick;
+        while (t < end && startsFrom(t) == startsTo(t) && stopsFrom(t) == stopsTo(t)) {
+            t++;
+        }
+        return Math.max(0, t - tick);
+    }
+
+    /**
+     * Calls action with every sustained note still sounding going into tick:
+     * started before it and stopped after it. ActiveSong uses this to seek
+     * and to loop to a tick other than 0. By default it scans every tick
+     * before tick; CompiledSong keeps an index instead.
+     */
+    default void forEachSoundingAt(int tick, IntConsumer action) {
+        int end = Math.min(tick, getMaxEndTick() + 1);
+        for (int t = 0; t < end; t++) {
+            for (int i = startsFrom(t), to = startsTo(t); i < to; i++) {
+                int note = startNote(i);
+                if (isSustained(note) && getEndTick(note) > tick) {
+                    action.accept(note);
+                }
+            }
+        }
+    }
+
+    /**
+     * Slot of the note's Bukkit Sound (0 to getSoundSlotCount() - 1), or -1 if it has none.
+     */
+    int soundSlot(int i);
+
+    int getSoundSlotCount();
+
+    /**
+     * Rough memory cost of this song in bytes, used to bound a SongLibrary.
+     */
+    default long getEstimatedBytes() {
+        return 24L * getNoteCount() + 8L * (getMaxEndTick() + 2) + 64L * getPaletteSize();
+    }
+}
@@ -0,0 +1,317 @@
+package org.nc.VSE;
+
+import org.bukkit.SoundCategory;
+
+import java.util.function.IntConsumer;
+
+/**
+ * A variant of a song (higher pitch, slower, quieter, delayed) that copies
+ * no notes: the pitch multiplier, gain and tick mapping are applied as the
+ * notes are read. Play it like any other SongTimeline.
+ *
+ * A song tick b is played on view tick floor(b * stretch) + offset; note
+ * ends round up instead, so a sustained note always lasts at least one tick.
+ * A stretch of 2 plays at half speed, 0.5 at double speed.
+ *
+ * The song must keep its events tick after tick in one list (CompiledSong,
+ * MappedSong or another SongView), so a StreamingSong can't be viewed.
+ */
+public final class SongView implements SongTimeline {
+    private final SongTimeline song;
+    private final float pitch;
+    private final float gain;
+    private final double stretch;
+    private final int offset;
+    private final int maxEndTick;
+
+    // this view's timbres, when they differ from the song's
+    private final TimbreCache timbres;
+
+    private SongView(SongTimeline song, float pitch, float gain, double stretch, int offset) {
+        if (song instanceof StreamingSong) {
+            throw new IllegalArgumentException("a StreamingSong can't be viewed");
+        }
+        if (!(pitch > 0) || !(gain >= 0) || !(stretch > 0) || offset < 0) {
+            throw new IllegalArgumentException("pitch and stretch must be positive, gain and offset not negative");
+        }
+        this.song = song;
+        this.pitch = pitch;
+        this.gain = gain;
+        this.stretch = stretch;
+        this.offset = offset;
+        this.maxEndTick = endTick(song.getMaxEndTick());
+        this.timbres = pitch == 1f && gain == 1f ? null : new TimbreCache();
+    }
+
+    public static SongView of(SongTimeline song) {
+        return new SongView(song, 1f, 1f, 1, 0);
+    }
+
+    public static SongView of(Song song) {
+        return of(song.compile());
+    }
+
+    /**
+     * Multiplies every note's pitch, e.g. 2 for an octave up.
+     */
+    public SongView pitch(float multiplier) {
+        return new SongView(song, pitch * multiplier, gain, stretch, offset);
+    }
+
+    /**
+     * Shifts every note by a number of semitones (negative for down).
+     */
+    public SongView transpose(int semitones) {
+        return pitch((float) Math.pow(2, semitones / 12.0));
+    }
+
+    /**
+     * Multiplies every note's volume.
+     */
+    public SongView gain(float gain) {
+        return new SongView(song, pitch, this.gain * gain, stretch, offset);
+    }
+
+    /**
+     * Multiplies the length of the song; the stretches of a chain multiply.
+     */
+    public SongView stretch(double factor) {
+        return new SongView(song, pitch, gain, stretch * factor, offset);
+    }
+
+    /**
+     * Plays the song this many ticks later, after silence. On a loop, the silence repeats too.
+     */
+    public SongView offset(int ticks) {
+        return new SongView(song, pitch, gain, stretch, offset + ticks);
+    }
+
+    public SongTimeline getSong() {
+        return song;
+    }
+
+    public float getPitchMultiplier() {
+        return pitch;
+    }
+
+    public float getGain() {
+        return gain;
+    }
+
+    public double getStretch() {
+        return stretch;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    // song tick -> view tick, for starts (rounded down) and ends (rounded up)
+    private int startTick(int tick) {
+        return stretch == 1 ? tick + offset : (int) Math.floor(tick * stretch) + offset;
+    }
+
+    private int endTick(int tick) {
+        return stretch == 1 ? tick + offset : (int) Math.ceil(tick * stretch) + offset;
+    }
+
+    /**
+     * The first song tick (0 to song max + 1) that lands on view tick t or later;
+     * ends says whether to map it as an end.
+     */
+    private int firstSongTick(int t, boolean ends) {
+        int last = song.getMaxEndTick() + 1;
+        if (t <= offset) {
+            return 0;
+        }
+        int b;
+        if (stretch == 1) {
+            b = t - offset;
+        } else {
+            // estimate, then correct for rounding
+            b = (int) Math.max(0, Math.min(last, Math.ceil((t - offset - (ends ? 1 : 0)) / stretch)));
+            while (b > 0 && viewTick(b - 1, ends) >= t) {
+                b--;
+            }
+            while (b < last && viewTick(b, ends) < t) {
+                b++;
+            }
+        }
+        return Math.min(b, last);
+    }
+
+    private int viewTick(int tick, boolean ends) {
+        return ends ? endTick(tick) : startTick(tick);
+    }
+
+    @Override
+    public String getTitle() {
+        return song.getTitle();
+    }
+
+    @Override
+    public int getTempo() {
+        return song.getTempo();
+    }
+
+    @Override
+    public long getNanosPerTick() {
+        return song.getNanosPerTick();
+    }
+
+    @Override
+    public int getNoteCount() {
+        return song.getNoteCount();
+    }
+
+    @Override
+    public int getStartTick(int i) {
+        return startTick(song.getStartTick(i));
+    }
+
+    @Override
+    public int getEndTick(int i) {
+        return song.isSustained(i) ? endTick(song.getEndTick(i)) : getStartTick(i);
+    }
+
+    @Override
+    public boolean isSustained(int i) {
+        return song.isSustained(i);
+    }
+
+    @Override
+    public float getPitch(int i) {
+        return song.getPitch(i) * pitch;
+    }
+
+    @Override
+    public float getVolume(int i) {
+        return song.getVolume(i) * gain;
+    }
+
+    @Override
+    public SoundCategory getCategory(int i) {
+        return song.getCategory(i);
+    }
+
+    @Override
+    public int getInstrumentIndex(int i) {
+        return song.getInstrumentIndex(i);
+    }
+
+    @Override
+    public Instrument getInstrument(int i) {
+        return song.getInstrument(i);
+    }
+
+    /**
+     * The song's own sound when pitch and gain are 1; otherwise one baked per
+     * distinct timbre of the view, on first use.
+     */
+    @Override
+    public net.kyori.adventure.sound.Sound getSoundHandle(int i, SoundCategory category) {
+        if (timbres == null) {
+            return song.getSoundHandle(i, category);
+        }
+        return timbres.handle(getInstrument(i), getCategory(i), getVolume(i), getPitch(i), category);
+    }
+
+    @Override
+    public int getPaletteSize() {
+        return song.getPaletteSize();
+    }
+
+    @Override
+    public Instrument getPaletteEntry(int paletteIndex) {
+        return song.getPaletteEntry(paletteIndex);
+    }
+
+    @Override
+    public int getMaxEndTick() {
+        return maxEndTick;
+    }
+
+    /**
+     * A view tick gathers the events of every song tick that lands on it;
+     * they sit next to each other in the song's event list.
+     */
+    @Override
+    public int startsFrom(int tick) {
+        int b = firstSongTick(tick, false);
+        return b > song.getMaxEndTick() ? song.startsTo(song.getMaxEndTick()) : song.startsFrom(b);
+    }
+
+    @Override
+    public int startsTo(int tick) {
+        return startsFrom(tick + 1);
+    }
+
+    @Override
+    public int startNote(int i) {
+        return song.startNote(i);
+    }
+
+    @Override
+    public int stopsFrom(int tick) {
+        int b = firstSongTick(tick, true);
+        return b > song.getMaxEndTick() ? song.stopsTo(song.getMaxEndTick()) : song.stopsFrom(b);
+    }
+
+    @Override
+    public int stopsTo(int tick) {
+        return stopsFrom(tick + 1);
+    }
+
+    @Override
+    public int stopNote(int i) {
+        return song.stopNote(i);
+    }
+
+    /**
+     * Asks the song for the notes sounding at the matching song tick, so a
+     * CompiledSong or MappedSong seeks from its checkpoints. Rounding can make
+     * a note that ends on that song tick still sound here, so the search goes
+     * back to the first song tick whose end lands after tick, and the few song
+     * ticks between there and tick are scanned.
+     */
+    @Override
+    public void forEachSoundingAt(int tick, IntConsumer action) {
+        int before = firstSongTick(tick, false); // song starts before this are heard before tick
+        if (before == 0) {
+            return;
+        }
+        int after = firstSongTick(tick + 1, true); // song ends from this on stop after tick
+        int from = Math.min(before, after - 1);
+        song.forEachSoundingAt(from, note -> {
+            if (getEndTick(note) > tick) {
+                action.accept(note);
+            }
+        });
+        for (int t = Math.max(from, 0); t < before; t++) {
+            for (int i = song.startsFrom(t), to = song.startsTo(t); i < to; i++) {
+                int note = song.startNote(i);
+                if (song.isSustained(note) && getEndTick(note) > tick) {
+                    action.accept(note);
+                }
+            }
+        }
+    }
+
+    @Override
+    public int soundSlot(int i) {
+        return song.soundSlot(i);
+    }
+
+    @Override
+    public int getSoundSlotCount() {
+        return song.getSoundSlotCount();
+    }
+
+    /**
+     * Only the view itself; the song it reads is counted where it is loaded.
+     */
+    @Override
+    public long getEstimatedBytes() {
+        return 64L + (timbres == null ? 0 : timbres.getEstimatedBytes());
+    }
+}
@@ -0,0 +1,151 @@
+package org.nc.VSE;
+
+import net.kyori.adventure.sound.Sound;
+import org.bukkit.SoundCategory;
+
+import java.util.Arrays;
+
+/**
+ * The play/stop events a channel's songs produced in one tick.
+ *
+ * Songs append to it while ticking, then the channel delivers the whole
+ * batch to its players. The arrays are reused from tick to tick, so a
+ * steady-state tick allocates nothing.
+ */
+public final class SoundEvents {
+    public static final byte PLAY = 0;      // one-shot note, never stopped
+    public static final byte PLAY_HELD = 1; // sustained note, a STOP follows later
+    public static final byte STOP = 2;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private byte[] kinds = new byte[INITIAL_CAPACITY];
+    private Instrument[] instruments = new Instrument[INITIAL_CAPACITY];
+    private SoundCategory[] categories = new SoundCategory[INITIAL_CAPACITY];
+    private float[] volumes = new float[INITIAL_CAPACITY];
+    private float[] pitches = new float[INITIAL_CAPACITY];
+    private Sound[] handles = new Sound[INITIAL_CAPACITY]; // the sound to send, null for stops
+    private ActiveSong[] sources = new ActiveSong[INITIAL_CAPACITY]; // for EventTrace
+    private int size;
+    private ActiveSong source; // the song adding events right now, see setSource
+
+    // While the engine is over its tick budget: notes quieter than this are skipped
+    private float quietVolume;
+    private int thinned;
+
+    /**
+     * @param handle the sound to send, with category, volume and pitch baked in (see Instrument.handle)
+     */
+    public void play(Instrument instrument, SoundCategory category, float volume, float pitch, Sound handle,
+                     boolean held) {
+        add(held ? PLAY_HELD : PLAY, instrument, category, volume, pitch, handle);
+    }
+
+    public void stop(Instrument instrument, SoundCategory category) {
+        add(STOP, instrument, category, 0f, 0f, null);
+    }
+
+    private void add(byte kind, Instrument instrument, SoundCategory category, float volume, float pitch,
+                     Sound handle) {
+        if (size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            instruments = Arrays.copyOf(instruments, capacity);
+            categories = Arrays.copyOf(categories, capacity);
+            volumes = Arrays.copyOf(volumes, capacity);
+            pitches = Arrays.copyOf(pitches, capacity);
+            handles = Arrays.copyOf(handles, capacity);
+            sources = Arrays.copyOf(sources, capacity);
+        }
+        kinds[size] = kind;
+        instruments[size] = instrument;
+        categories[size] = category;
+        volumes[size] = volume;
+        pitches[size] = pitch;
+        handles[size] = handle;
+        sources[size] = source;
+        size++;
+    }
+
+    /**
+     * Marks the events added from now on as coming from this song (null for none).
+     */
+    void setSource(ActiveSong source) {
+        this.source = source;
+    }
+
+    ActiveSong source(int i) {
+        return sources[i];
+    }
+
+    void setQuietVolume(float quietVolume) {
+        this.quietVolume = quietVolume;
+    }
+
+    /**
+     * True if a note of this volume is to be skipped to save time; it is then counted.
+     */
+    boolean thin(float volume) {
+        if (volume < quietVolume) {
+            thinned++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Notes skipped by thin() since the last call.
+     */
+    int takeThinned() {
+        int n = thinned;
+        thinned = 0;
+        return n;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public byte kind(int i) {
+        return kinds[i];
+    }
+
+    public Instrument instrument(int i) {
+        return instruments[i];
+    }
+
+    public SoundCategory category(int i) {
+        return categories[i];
+    }
+
+    public float volume(int i) {
+        return volumes[i];
+    }
+
+    public float pitch(int i) {
+        return pitches[i];
+    }
+
+    /**
+     * The sound a play event sends; null for stops.
+     */
+    public Sound handle(int i) {
+        return handles[i];
+    }
+
+    /**
+     * Empties the batch, keeping the arrays for the next tick.
+     */
+    public void clear() {
+        // drop the references so instruments of finished songs can be collected
+        Arrays.fill(instruments, 0, size, null);
+        Arrays.fill(handles, 0, size, null);
+        Arrays.fill(sources, 0, size, null);
+        source = null;
+        size = 0;
+    }
+}
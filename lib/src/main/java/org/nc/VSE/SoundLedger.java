@@ -0,0 +1,85 @@
+package org.nc.VSE;
+
+import org.bukkit.SoundCategory;
+import org.bukkit.entity.Player;
+
+import java.util.Arrays;
+
+/**
+ * The (instrument, category) pairs one player is currently hearing as
+ * sustained notes from one channel.
+ *
+ * A pair is added when a held note is played to the player and removed
+ * when it is stopped. Since stopSound silences every instance of a sound
+ * in a category, a pair is kept only once, and a stop is only sent if the
+ * pair is still here. Leaving a channel then stops exactly these pairs.
+ */
+final class SoundLedger {
+    private static final int INITIAL_CAPACITY = 4;
+
+    private Instrument[] instruments = new Instrument[INITIAL_CAPACITY];
+    private SoundCategory[] categories = new SoundCategory[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Records a sustained pair; returns false if it was already there.
+     */
+    boolean add(Instrument instrument, SoundCategory category) {
+        if (indexOf(instrument, category) >= 0) {
+            return false;
+        }
+        if (size == instruments.length) {
+            instruments = Arrays.copyOf(instruments, size * 2);
+            categories = Arrays.copyOf(categories, size * 2);
+        }
+        instruments[size] = instrument;
+        categories[size] = category;
+        size++;
+        return true;
+    }
+
+    /**
+     * Forgets a pair; returns true if it was there, i.e. a stop is needed.
+     */
+    boolean remove(Instrument instrument, SoundCategory category) {
+        int i = indexOf(instrument, category);
+        if (i < 0) {
+            return false;
+        }
+        size--;
+        instruments[i] = instruments[size];
+        categories[i] = categories[size];
+        instruments[size] = null;
+        return true;
+    }
+
+    private int indexOf(Instrument instrument, SoundCategory category) {
+        for (int i = 0; i < size; i++) {
+            if (categories[i] == category && instruments[i].equals(instrument)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Sends a stop for every recorded pair and empties the ledger; returns how many stops were sent.
+     * They are recorded in trace (if not null) as sent by channel.
+     */
+    int stopAll(Player player, SoundOutput output, EventTrace trace, String channel) {
+        int stops = size;
+        for (int i = 0; i < size; i++) {
+            output.stop(player, instruments[i].stopHandle(categories[i]));
+            if (trace != null) {
+                trace.stopSent(channel, player, instruments[i], categories[i]);
+            }
+            instruments[i] = null;
+        }
+        size = 0;
+        return stops;
+    }
+}
@@ -0,0 +1,42 @@
+package org.nc.VSE;
+
+import net.kyori.adventure.sound.Sound;
+import net.kyori.adventure.sound.SoundStop;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+/**
+ * Where channels send their sounds. Every Player/World sound call of the
+ * engine goes through one of these, so the EngineScheduler backend decides
+ * on which thread those calls actually run.
+ *
+ * Sounds arrive as prebuilt Adventure sounds and stops (see Instrument.handle
+ * and Instrument.stopHandle), which are immutable and reused from tick to tick.
+ */
+public interface SoundOutput {
+
+    /**
+     * Calls Bukkit right away, on the calling thread.
+     */
+    static SoundOutput direct() {
+        return DirectSoundOutput.INSTANCE;
+    }
+
+    /**
+     * Plays a sound on the player, following them.
+     */
+    void play(Player p, Sound sound);
+
+    /**
+     * Plays a sound to one player from a fixed position.
+     */
+    void play(Player p, Location at, Sound sound);
+
+    /**
+     * Plays a sound once at a position, for everyone in the world who can hear it.
+     */
+    void play(World world, Location at, Sound sound);
+
+    void stop(Player p, SoundStop stop);
+}
@@ -0,0 +1,170 @@
+package org.nc.VSE;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A chunk-grid index of player positions, one grid per world, used by
+ * positional channels to find who is within earshot.
+ *
+ * A world's grid is rebuilt at most once per engine tick, and only if a
+ * positional channel in that world asks for it, so the cost of a note
+ * does not grow with the number of players online.
+ *
+ * It reads every player's location from the engine thread, so it only
+ * works where that thread owns the players (not on Folia, see
+ * EngineScheduler.canReadPlayers).
+ */
+public final class SpatialIndex {
+    private final Map<World, Grid> grids = new HashMap<>();
+    private long tick;
+
+    /**
+     * Called by the engine at the start of every tick; marks every grid stale.
+     */
+    void nextTick() {
+        tick++;
+    }
+
+    /**
+     * Adds every player within radius of center to out (out is not cleared).
+     */
+    public void nearby(Location center, double radius, List<Player> out) {
+        World world = center.getWorld();
+        Grid grid = grids.get(world);
+        if (grid == null) {
+            grid = new Grid(world);
+            grids.put(world, grid);
+        }
+        if (grid.builtAt != tick) {
+            grid.rebuild();
+            grid.builtAt = tick;
+        }
+        grid.query(center.getX(), center.getY(), center.getZ(), radius, out);
+    }
+
+    /**
+     * Forgets a world's grid, e.g. after the world was unloaded.
+     */
+    public void forget(World world) {
+        grids.remove(world);
+    }
+
+    private static long cellKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    private static int hash(long key) {
+        return Long.hashCode(key * 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * Players of one world bucketed by chunk. Players in the same chunk are
+     * chained through next[]; cells are an open-addressing table of chunk
+     * keys pointing at the first player of their chain.
+     */
+    private static final class Grid {
+        private final World world;
+        private final Location scratch;
+        private long builtAt = -1;
+
+        private Player[] players = new Player[16];
+        private double[] xs = new double[16];
+        private double[] ys = new double[16];
+        private double[] zs = new double[16];
+        private int[] next = new int[16];
+        private int count;
+
+        private long[] cellKeys = new long[32];
+        private int[] cellHeads = new int[32];
+
+        Grid(World world) {
+            this.world = world;
+            this.scratch = new Location(world, 0, 0, 0);
+        }
+
+        void rebuild() {
+            List<Player> online = world.getPlayers();
+            int n = online.size();
+            if (players.length < n) {
+                int capacity = Math.max(n, players.length * 2);
+                players = new Player[capacity];
+                xs = new double[capacity];
+                ys = new double[capacity];
+                zs = new double[capacity];
+                next = new int[capacity];
+            } else if (count > n) {
+                Arrays.fill(players, n, count, null);
+            }
+            if (cellHeads.length < n * 2) {
+                int cells = Integer.highestOneBit(n * 2 - 1) << 1;
+                cellKeys = new long[cells];
+                cellHeads = new int[cells];
+            }
+            Arrays.fill(cellHeads, -1);
+
+            count = n;
+            for (int i = 0; i < n; i++) {
+                Player p = online.get(i);
+                p.getLocation(scratch);
+                players[i] = p;
+                xs[i] = scratch.getX();
+                ys[i] = scratch.getY();
+                zs[i] = scratch.getZ();
+
+                int slot = slotFor(cellKey(scratch.getBlockX() >> 4, scratch.getBlockZ() >> 4), true);
+                next[i] = cellHeads[slot];
+                cellHeads[slot] = i;
+            }
+        }
+
+        /**
+         * Table slot of a chunk key; if create, an empty slot is claimed for a new key.
+         * Returns -1 if the key is absent and create is false.
+         */
+        private int slotFor(long key, boolean create) {
+            int mask = cellHeads.length - 1;
+            int slot = hash(key) & mask;
+            while (cellHeads[slot] != -1) {
+                if (cellKeys[slot] == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (!create) {
+                return -1;
+            }
+            cellKeys[slot] = key;
+            return slot;
+        }
+
+        void query(double x, double y, double z, double radius, List<Player> out) {
+            if (count == 0) return;
+            double radiusSq = radius * radius;
+            int minX = (int) Math.floor(x - radius) >> 4;
+            int maxX = (int) Math.floor(x + radius) >> 4;
+            int minZ = (int) Math.floor(z - radius) >> 4;
+            int maxZ = (int) Math.floor(z + radius) >> 4;
+            for (int cx = minX; cx <= maxX; cx++) {
+                for (int cz = minZ; cz <= maxZ; cz++) {
+                    int slot = slotFor(cellKey(cx, cz), false);
+                    if (slot < 0) continue;
+                    for (int i = cellHeads[slot]; i != -1; i = next[i]) {
+                        double dx = xs[i] - x;
+                        double dy = ys[i] - y;
+                        double dz = zs[i] - z;
+                        if (dx * dx + dy * dy + dz * dz <= radiusSq) {
+                            out.add(players[i]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.nc.VSE;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for a channel that sent many stops at once, e.g. a large
+ * channel being removed or many held notes ending on the same tick.
+ * See MultiChannelEngine.setStopBurstThreshold. Like SlowTickEvent, it is
+ * only created while a recording has it enabled.
+ */
+@Name("org.nc.VSE.StopBurst")
+@Label("VSE Stop Burst")
+@Category("VSE")
+@Description("Many stopSound calls sent by one channel at once")
+final class StopBurstEvent extends jdk.jfr.Event {
+    static final EventType TYPE = EventType.getEventType(StopBurstEvent.class);
+
+    @Label("Channel")
+    String channel;
+
+    @Label("Stops Sent")
+    long stops;
+
+    @Label("Audience")
+    int audience;
+}
@@ -0,0 +1,90 @@
+package org.nc.VSE;
+
+import org.bukkit.SoundCategory;
+
+import java.io.IOException;
+
+/**
+ * Notes for a StreamingSong, read one window of ticks at a time.
+ *
+ * A source can be a song file (see of), or a generator that makes up notes
+ * as it is asked for them.
+ */
+public interface StreamSource {
+
+    String getTitle();
+
+    /**
+     * Beats per minute, see Song.TICKS_PER_BEAT.
+     */
+    int getTempo();
+
+    /**
+     * The last tick of the song; every note must end by then.
+     */
+    int getMaxEndTick();
+
+    /**
+     * The instruments that notes refer to by index. Read once, when the stream is opened.
+     */
+    Instrument[] getPalette();
+
+    /**
+     * Adds every note starting in [fromTick, toTick) to out, in any order.
+     * Called off the main thread, one call at a time, usually in tick order;
+     * a jump back (e.g. a loop restarting at 0) is a fresh read.
+     */
+    void read(int fromTick, int toTick, Sink out) throws IOException;
+
+    interface Sink {
+        /**
+         * instrument is an index into getPalette().
+         */
+        void add(int startTick, int endTick, float pitch, float volume, SoundCategory category, int instrument);
+    }
+
+    /**
+     * Streams an existing song. With a MappedSong, a window only touches the
+     * pages of the file it covers, so the song never has to fit on the heap.
+     */
+    static StreamSource of(SongTimeline song) {
+        Instrument[] palette = new Instrument[song.getPaletteSize()];
+        for (int p = 0; p < palette.length; p++) {
+            palette[p] = song.getPaletteEntry(p);
+        }
+        return new StreamSource() {
+            @Override
+            public String getTitle() {
+                return song.getTitle();
+            }
+
+            @Override
+            public int getTempo() {
+                return song.getTempo();
+            }
+
+            @Override
+            public int getMaxEndTick() {
+                return song.getMaxEndTick();
+            }
+
+            @Override
+            public Instrument[] getPalette() {
+                return palette;
+            }
+
+            @Override
+            public void read(int fromTick, int toTick, Sink out) {
+                int last = Math.min(toTick - 1, song.getMaxEndTick());
+                for (int t = fromTick; t <= last; t++) {
+                    for (int i = song.startsFrom(t), end = song.startsTo(t); i < end; i++) {
+                        int n = song.startNote(i);
+                        int endTick = song.isSustained(n) ? song.getEndTick(n) : t;
+                        out.add(t, endTick, song.getPitch(n), song.getVolume(n), song.getCategory(n),
+                                song.getInstrumentIndex(n));
+                    }
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,511 @@
+package org.nc.VSE;
+
+import org.bukkit.SoundCategory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A song played from a StreamSource one window of ticks at a time, for
+ * songs too long to keep in memory (hours of ambient music, generated music).
+ *
+ * Only the window being played and the next one are held. While a window
+ * plays, the next is read on the prefetch executor; once playback moves on,
+ * the old window's arrays are reused for the one after. Memory per stream
+ * stays the same however long the song is. Notes still sounding across a
+ * window boundary are carried over so they get their stop.
+ *
+ * A StreamingSong keeps a read cursor, so it can only be played by one
+ * ActiveSong at a time; open one per playback. Only the notes of the window
+ * being played can be looked up.
+ */
+public final class StreamingSong implements SongTimeline {
+    public static final int DEFAULT_WINDOW_TICKS = 200; // 10 seconds at 20 ticks per second
+
+    private static final SoundCategory[] CATEGORIES = SoundCategory.values();
+
+    private final StreamSource source;
+    private final String title;
+    private final int tempo;
+    private final Instrument[] palette;
+    private final TimbreCache timbres = new TimbreCache();
+    private final short[] soundSlots;
+    private final int soundSlotCount;
+    private final int windowTicks;
+    private final Executor prefetcher;
+    private volatile int maxEndTick;
+    private volatile IOException failure;
+
+    // playback side
+    private Window current;
+    private CompletableFuture<Window> next; // being read, or null
+    private int nextFrom; // first tick of the window being read
+    private boolean retrying; // next is the second read of a window whose first read failed
+    private boolean waiting; // playing silence until next is read, see windowFor
+    private Window silence; // the empty one-tick window played meanwhile
+    private Window spare; // a released window, reused for the next read
+
+    // reader side, only used by one read at a time
+    private volatile int nextId; // also read by silence() while a read runs
+    private int expectedFrom = -1;
+    private int[] pendingEnds = new int[16];
+    private int[] pendingIds = new int[16];
+    private int pendingCount;
+
+    public StreamingSong(StreamSource source) {
+        this(source, DEFAULT_WINDOW_TICKS, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param windowTicks ticks per window; the next window is read while one plays
+     * @param prefetcher  where windows are read, e.g. a small I/O pool
+     */
+    public StreamingSong(StreamSource source, int windowTicks, Executor prefetcher) {
+        if (windowTicks <= 0) {
+            throw new IllegalArgumentException("windowTicks must be positive");
+        }
+        this.source = source;
+        this.title = source.getTitle();
+        this.tempo = source.getTempo();
+        this.maxEndTick = source.getMaxEndTick();
+        this.palette = source.getPalette().clone();
+        this.soundSlots = new short[palette.length];
+        this.soundSlotCount = CompiledSong.assignSoundSlots(palette, soundSlots);
+        this.windowTicks = windowTicks;
+        this.prefetcher = prefetcher;
+        prefetch(0);
+    }
+
+    /**
+     * The error that cut the song short, or null. A window whose read fails is
+     * read once more in the background while the song plays silence; if that
+     * fails too, the song ends at the tick before.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    public int getWindowTicks() {
+        return windowTicks;
+    }
+
+    private void prefetch(int from) {
+        Window w = takeSpare();
+        nextFrom = from;
+        next = CompletableFuture.supplyAsync(() -> {
+            try {
+                read(w, from);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return w;
+        }, prefetcher);
+    }
+
+    private Window takeSpare() {
+        Window w = spare != null ? spare : new Window(windowTicks);
+        spare = null;
+        return w;
+    }
+
+    /**
+     * The window holding tick, switching to the prefetched one and starting
+     * the read of the one after. Files are never read on the calling (engine)
+     * thread: if the window isn't prefetched (a jump, or its read failed), it
+     * is read in the background and the song plays silence until it is there.
+     */
+    private Window windowFor(int tick) {
+        Window w = current;
+        if (w != null && w.contains(tick)) {
+            return w;
+        }
+        if (next == null || (waiting && !next.isDone())) {
+            if (next == null) {
+                prefetch(tick - tick % windowTicks);
+            }
+            return silence(tick);
+        }
+
+        Window ready = null;
+        boolean retried = retrying;
+        retrying = false;
+        try {
+            ready = next.join();
+        } catch (CompletionException e) {
+            next = null;
+            if (!retried) {
+                // try the same window once more, without waiting for it
+                prefetch(nextFrom);
+                retrying = true;
+                return silence(tick);
+            }
+            fail(e.getCause(), tick);
+            ready = takeSpare();
+            ready.clear(tick - tick % windowTicks, nextId);
+        }
+        next = null;
+        if (!ready.contains(tick)) {
+            // a jump, or the window came too late: read the one needed now
+            spare = ready;
+            prefetch(tick - tick % windowTicks);
+            return silence(tick);
+        }
+
+        if (current != null && current != silence) {
+            spare = current;
+        }
+        current = ready;
+        waiting = false;
+        // read ahead; after the last window, read the start again in case the song loops
+        prefetch(ready.to <= maxEndTick ? ready.to : 0);
+        return ready;
+    }
+
+    /**
+     * An empty window for tick alone, played while the window holding it is read.
+     */
+    private Window silence(int tick) {
+        if (silence == null) {
+            silence = new Window(1);
+        }
+        if (current != null && current != silence && spare == null) {
+            spare = current;
+        }
+        silence.clear(tick, nextId);
+        current = silence;
+        waiting = true;
+        return silence;
+    }
+
+    private void fail(Throwable cause, int tick) {
+        if (cause instanceof UncheckedIOException) {
+            cause = cause.getCause();
+        }
+        failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        maxEndTick = Math.max(0, Math.min(maxEndTick, tick - 1));
+    }
+
+    /**
+     * Fills w with the window starting at from. Runs on one thread at a time.
+     */
+    private void read(Window w, int from) throws IOException {
+        if (from != expectedFrom) {
+            pendingCount = 0; // a jump: nothing is carried over
+        }
+        w.clear(from, nextId);
+        // if this throws, the carried over notes are kept for a second read of the same window
+        source.read(from, w.to, w);
+        expectedFrom = -1; // index() takes the carried over notes, until it is done
+        w.index(this);
+        nextId += w.count;
+        expectedFrom = w.to;
+    }
+
+    private void addPending(int endTick, int id) {
+        if (pendingCount == pendingEnds.length) {
+            pendingEnds = Arrays.copyOf(pendingEnds, pendingCount * 2);
+            pendingIds = Arrays.copyOf(pendingIds, pendingCount * 2);
+        }
+        pendingEnds[pendingCount] = endTick;
+        pendingIds[pendingCount] = id;
+        pendingCount++;
+    }
+
+    /**
+     * One window of notes, indexed by tick like a CompiledSong. Note ids are
+     * base + position in start order and keep counting up across windows.
+     */
+    private static final class Window implements StreamSource.Sink {
+        int from;
+        int to;
+        int base;
+        int count;
+
+        int[] starts = new int[64];
+        int[] ends = new int[64];
+        float[] pitches = new float[64];
+        float[] volumes = new float[64];
+        byte[] categories = new byte[64];
+        short[] instruments = new short[64];
+        Timbre[] timbres = new Timbre[64]; // baked by index(), so playing a note builds no sound
+        int[] order = new int[64]; // start order -> raw index
+
+        final int[] startOffsets;
+        final int[] stopOffsets;
+        int[] stopIds = new int[16];
+        private final int[] cursor; // scratch for index()
+
+        Window(int ticks) {
+            this.startOffsets = new int[ticks + 1];
+            this.stopOffsets = new int[ticks + 1];
+            this.cursor = new int[ticks];
+        }
+
+        boolean contains(int tick) {
+            return tick >= from && tick < to;
+        }
+
+        void clear(int from, int base) {
+            this.from = from;
+            this.to = from + startOffsets.length - 1;
+            this.base = base;
+            this.count = 0;
+            Arrays.fill(startOffsets, 0);
+            Arrays.fill(stopOffsets, 0);
+        }
+
+        @Override
+        public void add(int startTick, int endTick, float pitch, float volume, SoundCategory category, int instrument) {
+            if (startTick < from || startTick >= to) {
+                return;
+            }
+            if (count == starts.length) {
+                int capacity = count * 2;
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+                pitches = Arrays.copyOf(pitches, capacity);
+                volumes = Arrays.copyOf(volumes, capacity);
+                categories = Arrays.copyOf(categories, capacity);
+                instruments = Arrays.copyOf(instruments, capacity);
+                timbres = new Timbre[capacity];
+                order = new int[capacity];
+            }
+            starts[count] = startTick;
+            ends[count] = endTick;
+            pitches[count] = pitch;
+            volumes[count] = volume;
+            categories[count] = (byte) category.ordinal();
+            instruments[count] = (short) instrument;
+            count++;
+        }
+
+        /**
+         * Builds the start and stop indexes, taking the stops carried over from
+         * earlier windows and carrying over the notes that end after this one.
+         */
+        void index(StreamingSong song) {
+            int ticks = to - from;
+            for (int i = 0; i < count; i++) {
+                timbres[i] = song.timbres.get(song.palette[instruments[i]], CATEGORIES[categories[i]],
+                        volumes[i], pitches[i]);
+            }
+
+            // (1) starts: counting sort by tick, keeping the order notes were added in
+            for (int i = 0; i < count; i++) {
+                startOffsets[starts[i] - from + 1]++;
+            }
+            for (int t = 0; t < ticks; t++) {
+                startOffsets[t + 1] += startOffsets[t];
+            }
+            System.arraycopy(startOffsets, 0, cursor, 0, ticks);
+            for (int i = 0; i < count; i++) {
+                order[cursor[starts[i] - from]++] = i;
+            }
+
+            // (2) stops due in this window: carried over ones, then our own sustained notes
+            int stops = 0;
+            for (int p = 0; p < song.pendingCount; p++) {
+                if (song.pendingEnds[p] < to) {
+                    stopOffsets[Math.max(song.pendingEnds[p], from) - from + 1]++;
+                    stops++;
+                }
+            }
+            for (int k = 0; k < count; k++) {
+                int i = order[k];
+                if (ends[i] > starts[i] && ends[i] < to) {
+                    stopOffsets[ends[i] - from + 1]++;
+                    stops++;
+                }
+            }
+            for (int t = 0; t < ticks; t++) {
+                stopOffsets[t + 1] += stopOffsets[t];
+            }
+            if (stopIds.length < stops) {
+                stopIds = new int[Math.max(stops, stopIds.length * 2)];
+            }
+            System.arraycopy(stopOffsets, 0, cursor, 0, ticks);
+            int kept = 0;
+            for (int p = 0; p < song.pendingCount; p++) {
+                int end = song.pendingEnds[p];
+                if (end < to) {
+                    stopIds[cursor[Math.max(end, from) - from]++] = song.pendingIds[p];
+                } else {
+                    song.pendingEnds[kept] = end;
+                    song.pendingIds[kept] = song.pendingIds[p];
+                    kept++;
+                }
+            }
+            song.pendingCount = kept;
+            for (int k = 0; k < count; k++) {
+                int i = order[k];
+                if (ends[i] > starts[i]) {
+                    if (ends[i] < to) {
+                        stopIds[cursor[ends[i] - from]++] = base + k;
+                    } else {
+                        song.addPending(ends[i], base + k);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Raw index of a note id of this window.
+         */
+        int raw(int id) {
+            return order[id - base];
+        }
+    }
+
+    @Override
+    public String getTitle() {
+        return title;
+    }
+
+    @Override
+    public int getTempo() {
+        return tempo;
+    }
+
+    /**
+     * The number of notes in the window being played.
+     */
+    @Override
+    public int getNoteCount() {
+        return current == null ? 0 : current.count;
+    }
+
+    @Override
+    public int getStartTick(int i) {
+        return current.starts[current.raw(i)];
+    }
+
+    @Override
+    public int getEndTick(int i) {
+        return current.ends[current.raw(i)];
+    }
+
+    @Override
+    public float getPitch(int i) {
+        return current.pitches[current.raw(i)];
+    }
+
+    @Override
+    public float getVolume(int i) {
+        return current.volumes[current.raw(i)];
+    }
+
+    @Override
+    public SoundCategory getCategory(int i) {
+        return CATEGORIES[current.categories[current.raw(i)]];
+    }
+
+    @Override
+    public int getInstrumentIndex(int i) {
+        return current.instruments[current.raw(i)];
+    }
+
+    /**
+     * Baked when the window was read, once per distinct timbre of the song.
+     */
+    @Override
+    public net.kyori.adventure.sound.Sound getSoundHandle(int i, SoundCategory category) {
+        Timbre t = current.timbres[current.raw(i)];
+        net.kyori.adventure.sound.Sound handle = t.handle(category);
+        return handle != null ? handle : t.getInstrument().handle(category, t.getVolume(), t.getPitch());
+    }
+
+    @Override
+    public int getPaletteSize() {
+        return palette.length;
+    }
+
+    @Override
+    public Instrument getPaletteEntry(int paletteIndex) {
+        return palette[paletteIndex];
+    }
+
+    @Override
+    public int getMaxEndTick() {
+        return maxEndTick;
+    }
+
+    /**
+     * Start events are note ids, so startNote(i) is i.
+     */
+    @Override
+    public int startsFrom(int tick) {
+        Window w = windowFor(tick);
+        return w.base + w.startOffsets[tick - w.from];
+    }
+
+    @Override
+    public int startsTo(int tick) {
+        Window w = windowFor(tick);
+        return w.base + w.startOffsets[tick - w.from + 1];
+    }
+
+    @Override
+    public int startNote(int i) {
+        return i;
+    }
+
+    @Override
+    public int stopsFrom(int tick) {
+        Window w = windowFor(tick);
+        return w.stopOffsets[tick - w.from];
+    }
+
+    @Override
+    public int stopsTo(int tick) {
+        Window w = windowFor(tick);
+        return w.stopOffsets[tick - w.from + 1];
+    }
+
+    /**
+     * Only looks inside the window being played, so it never moves the read cursor.
+     */
+    @Override
+    public int emptyTicksFrom(int tick, int max) {
+        Window w = current;
+        if (w == null || !w.contains(tick)) {
+            return 0;
+        }
+        int end = Math.min(Math.min(tick + max, maxEndTick), w.to);
+        int t = tick;
+        while (t < end && w.startOffsets[t - w.from] == w.startOffsets[t - w.from + 1]
+                && w.stopOffsets[t - w.from] == w.stopOffsets[t - w.from + 1]) {
+            t++;
+        }
+        return Math.max(0, t - tick);
+    }
+
+    @Override
+    public int stopNote(int i) {
+        return current.stopIds[i];
+    }
+
+    @Override
+    public int soundSlot(int i) {
+        return soundSlots[getInstrumentIndex(i)];
+    }
+
+    @Override
+    public int getSoundSlotCount() {
+        return soundSlotCount;
+    }
+
+    /**
+     * About three windows of the densest size seen so far.
+     */
+    @Override
+    public long getEstimatedBytes() {
+        Window w = current;
+        int notes = w == null ? 64 : w.starts.length;
+        return 3L * (30L * notes + 8L * (windowTicks + 1)) + 64L * palette.length + timbres.getEstimatedBytes();
+    }
+}
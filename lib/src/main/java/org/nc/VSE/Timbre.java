@@ -0,0 +1,104 @@
+package org.nc.VSE;
+
+import org.bukkit.SoundCategory;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * How a note sounds apart from when it plays: instrument, category, volume
+ * and pitch, with the Adventure sound that plays it.
+ *
+ * Timbres are interned across all songs (see of), so a library of songs
+ * built from the same few instruments shares a few hundred of them, and a
+ * CompiledSong keeps only an index into its own list of timbres per note.
+ * Timbres no song uses any more are dropped from the table by the GC.
+ */
+final class Timbre {
+    private static final SoundCategory[] CATEGORIES = SoundCategory.values();
+    private static final Map<Timbre, WeakReference<Timbre>> INTERNED = new WeakHashMap<>();
+
+    private final Instrument instrument;
+    private final byte category;
+    private final float volume;
+    private final float pitch;
+    // the sound in its own category and, for MASTER notes, in MUSIC (the fallback
+    // ActiveSong picks when the Sound is already held in MASTER)
+    private final net.kyori.adventure.sound.Sound handle;
+    private final net.kyori.adventure.sound.Sound musicHandle;
+
+    private Timbre(Instrument instrument, byte category, float volume, float pitch, boolean bake) {
+        this.instrument = instrument;
+        this.category = category;
+        this.volume = volume;
+        this.pitch = pitch;
+        this.handle = bake ? instrument.handle(CATEGORIES[category], volume, pitch) : null;
+        this.musicHandle = bake && category == SoundCategory.MASTER.ordinal() && !instrument.isCustom()
+                ? instrument.handle(SoundCategory.MUSIC, volume, pitch) : null;
+    }
+
+    /**
+     * The shared timbre for these values; instrument should come from Instrument.of.
+     */
+    static Timbre of(Instrument instrument, SoundCategory category, float volume, float pitch) {
+        Timbre probe = new Timbre(instrument, (byte) category.ordinal(), volume, pitch, false);
+        synchronized (INTERNED) {
+            WeakReference<Timbre> ref = INTERNED.get(probe);
+            Timbre t = ref == null ? null : ref.get();
+            if (t == null) {
+                t = new Timbre(instrument, probe.category, volume, pitch, true);
+                INTERNED.put(t, new WeakReference<>(t));
+            }
+            return t;
+        }
+    }
+
+    /**
+     * Distinct timbres currently interned.
+     */
+    static int internedCount() {
+        synchronized (INTERNED) {
+            return INTERNED.size();
+        }
+    }
+
+    Instrument getInstrument() {
+        return instrument;
+    }
+
+    SoundCategory getCategory() {
+        return CATEGORIES[category];
+    }
+
+    float getVolume() {
+        return volume;
+    }
+
+    float getPitch() {
+        return pitch;
+    }
+
+    /**
+     * The baked sound in category, or null if that isn't one baked ahead.
+     */
+    net.kyori.adventure.sound.Sound handle(SoundCategory category) {
+        if (category.ordinal() == this.category) {
+            return handle;
+        }
+        return category == SoundCategory.MUSIC ? musicHandle : null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Timbre)) return false;
+        Timbre t = (Timbre) o;
+        return instrument.equals(t.instrument) && category == t.category
+                && Float.compare(volume, t.volume) == 0 && Float.compare(pitch, t.pitch) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((instrument.hashCode() * 31 + category) * 31 + Float.hashCode(volume)) * 31 + Float.hashCode(pitch);
+    }
+}
@@ -0,0 +1,96 @@
+package org.nc.VSE;
+
+import org.bukkit.SoundCategory;
+
+/**
+ * The Timbres of a song that doesn't keep one per note (MappedSong,
+ * StreamingSong, a SongView that changes pitch or volume), found by value,
+ * so their baked sounds are built once per distinct timbre instead of once
+ * per note played.
+ *
+ * A small open-addressing table of the Timbres themselves, so a lookup
+ * builds no key. Reads take no lock and may run on several threads; a miss
+ * interns the timbre and publishes a new table.
+ */
+final class TimbreCache {
+    private static final int INITIAL_CAPACITY = 16; // a power of two
+
+    private volatile Timbre[] table = new Timbre[INITIAL_CAPACITY];
+    private int size; // guarded by this
+
+    /**
+     * The sound that plays a note of these values in category: the baked one
+     * if category is the note's own (or MUSIC for a MASTER note), else a new one.
+     */
+    net.kyori.adventure.sound.Sound handle(Instrument instrument, SoundCategory noteCategory, float volume,
+                                           float pitch, SoundCategory category) {
+        net.kyori.adventure.sound.Sound handle = get(instrument, noteCategory, volume, pitch).handle(category);
+        return handle != null ? handle : instrument.handle(category, volume, pitch);
+    }
+
+    /**
+     * The shared Timbre for these values.
+     */
+    Timbre get(Instrument instrument, SoundCategory category, float volume, float pitch) {
+        Timbre t = find(table, instrument, category, volume, pitch);
+        return t != null ? t : add(instrument, category, volume, pitch);
+    }
+
+    /**
+     * Timbres are shared, so only the table of references is counted.
+     */
+    long getEstimatedBytes() {
+        return 16L + 4L * table.length;
+    }
+
+    private synchronized Timbre add(Instrument instrument, SoundCategory category, float volume, float pitch) {
+        Timbre t = find(table, instrument, category, volume, pitch);
+        if (t != null) {
+            return t; // added meanwhile
+        }
+        t = Timbre.of(instrument, category, volume, pitch);
+        Timbre[] copy = table.clone();
+        if (2 * (size + 1) > copy.length) {
+            copy = new Timbre[copy.length * 2];
+            for (Timbre old : table) {
+                if (old != null) {
+                    insert(copy, old);
+                }
+            }
+        }
+        insert(copy, t);
+        size++;
+        table = copy;
+        return t;
+    }
+
+    private static Timbre find(Timbre[] table, Instrument instrument, SoundCategory category, float volume,
+                               float pitch) {
+        int mask = table.length - 1;
+        for (int i = hash(instrument, category, volume, pitch) & mask; ; i = (i + 1) & mask) {
+            Timbre t = table[i];
+            if (t == null) {
+                return null;
+            }
+            if (t.getCategory() == category && Float.compare(t.getVolume(), volume) == 0
+                    && Float.compare(t.getPitch(), pitch) == 0 && t.getInstrument().equals(instrument)) {
+                return t;
+            }
+        }
+    }
+
+    private static void insert(Timbre[] table, Timbre t) {
+        int mask = table.length - 1;
+        int i = hash(t.getInstrument(), t.getCategory(), t.getVolume(), t.getPitch()) & mask;
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        table[i] = t;
+    }
+
+    private static int hash(Instrument instrument, SoundCategory category, float volume, float pitch) {
+        int h = ((instrument.hashCode() * 31 + category.ordinal()) * 31 + Float.floatToIntBits(volume)) * 31
+                + Float.floatToIntBits(pitch);
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,17 @@
+package org.nc.VSE;
+
+/**
+ * How an ActiveSong decides which of its ticks are due.
+ */
+public enum TimingMode {
+    /**
+     * One song tick per engine tick. Tempo is ignored, and server lag slows the song down.
+     */
+    SERVER_TICKS,
+    /**
+     * Song ticks are spaced by the song's tempo against System.nanoTime().
+     * When the server falls behind, the overdue ticks are processed in one
+     * pass, as the LatePolicy says.
+     */
+    WALL_CLOCK
+}
@@ -0,0 +1,117 @@
+package org.nc.VSE;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ActiveSongTest {
+
+    // pad sounds 0..40 under the whole song, lead 20..30, a one-shot bell at 5
+    private static CompiledSong song() {
+        Song song = new Song("Seek", 120);
+        song.addNote(new Note("custom.pad", 0, 40, 1f, 1f));
+        song.addNote(new Note("custom.bell", 5, 5, 1f, 1f));
+        song.addNote(new Note("custom.lead", 20, 30, 1f, 1f));
+        return song.compile();
+    }
+
+    private static int count(SoundEvents events, byte kind, String key) {
+        int n = 0;
+        for (int i = 0; i < events.size(); i++) {
+            if (events.kind(i) == kind && events.instrument(i).getKey().equals(key)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static void play(ActiveSong song, SoundEvents events, int ticks) {
+        for (int i = 0; i < ticks; i++) {
+            song.tick(events, 0);
+        }
+    }
+
+    @Test
+    void seekStartsTheNotesSoundingThere() {
+        ActiveSong song = new ActiveSong("s", song(), false);
+        SoundEvents events = new SoundEvents();
+        song.seek(25);
+        assertEquals(25, song.getCurrentTick());
+
+        song.tick(events, 0);
+        assertEquals(26, song.getCurrentTick());
+        assertEquals(2, song.getHeldCount());
+        assertEquals(1, count(events, SoundEvents.PLAY_HELD, "custom.pad"));
+        assertEquals(1, count(events, SoundEvents.PLAY_HELD, "custom.lead"));
+        assertEquals(0, count(events, SoundEvents.PLAY, "custom.bell"));
+    }
+
+    @Test
+    void seekKeepsHeldNotesAndStopsTheOthers() {
+        ActiveSong song = new ActiveSong("s", song(), false);
+        SoundEvents events = new SoundEvents();
+        play(song, events, 25);
+        assertEquals(2, song.getHeldCount());
+
+        events.clear();
+        song.seek(35);
+        song.tick(events, 0);
+        assertEquals(1, song.getHeldCount());
+        assertEquals(1, count(events, SoundEvents.STOP, "custom.lead"));
+        assertEquals(0, count(events, SoundEvents.STOP, "custom.pad"));
+        assertEquals(0, count(events, SoundEvents.PLAY_HELD, "custom.pad"));
+    }
+
+    @Test
+    void seekBackReplaysFromThere() {
+        ActiveSong song = new ActiveSong("s", song(), false);
+        SoundEvents events = new SoundEvents();
+        play(song, events, 25);
+
+        events.clear();
+        song.seek(3);
+        play(song, events, 3);
+        assertEquals(6, song.getCurrentTick());
+        assertEquals(1, song.getHeldCount());
+        assertEquals(1, count(events, SoundEvents.STOP, "custom.lead"));
+        assertEquals(1, count(events, SoundEvents.PLAY, "custom.bell"));
+    }
+
+    @Test
+    void songEndsAfterItsLastTick() {
+        ActiveSong song = new ActiveSong("s", song(), false);
+        SoundEvents events = new SoundEvents();
+        play(song, events, 40);
+        assertEquals(1, song.getHeldCount());
+
+        song.tick(events, 0);
+        assertTrue(song.isStopped());
+        assertEquals(0, song.getHeldCount());
+        assertEquals(1, count(events, SoundEvents.STOP, "custom.pad"));
+    }
+
+    @Test
+    void loopWrapsToTheLoopStartWithItsLeadIn() {
+        ActiveSong song = new ActiveSong("s", song(), true);
+        song.setLoopStart(10);
+        SoundEvents events = new SoundEvents();
+        play(song, events, 40);
+
+        // Tick 40 ends the pad, then the wrap starts it again: it sounds at tick 10
+        events.clear();
+        song.tick(events, 0);
+        assertEquals(10, song.getCurrentTick());
+        assertEquals(1, song.getHeldCount());
+        assertEquals(1, count(events, SoundEvents.STOP, "custom.pad"));
+        assertEquals(1, count(events, SoundEvents.PLAY_HELD, "custom.pad"));
+
+        // The bell at 5 is before the loop start, so it doesn't play again
+        events.clear();
+        play(song, events, 31);
+        assertEquals(0, count(events, SoundEvents.PLAY, "custom.bell"));
+        assertEquals(1, count(events, SoundEvents.PLAY_HELD, "custom.lead"));
+        assertEquals(10, song.getCurrentTick());
+        assertEquals(1, song.getHeldCount());
+    }
+}
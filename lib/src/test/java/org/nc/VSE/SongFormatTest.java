@@ -0,0 +1,98 @@
+package org.nc.VSE;
+
+import org.bukkit.SoundCategory;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SongFormatTest {
+
+    // Custom keys only, so no server registry is needed
+    private static CompiledSong song() {
+        Song song = new Song("Round trip", 150);
+        song.addNote(new Note("custom.pad", 0, 300, 1f, 0.5f));
+        song.addNote(new Note(SoundCategory.RECORDS, "custom.bell", 0, 0, 0.75f, 1f));
+        song.addNote(new Note("custom.bell", 4, 4, 2f, 0.25f));
+        song.addNote(new Note("custom.pad", 4, 9, 1.5f, 1f));
+        song.addNote(new Note("custom.pad", 9, 12, 0.5f, 0.75f));
+        song.addNote(new Note("custom.lead", 600, 610, 1.25f, 0.5f));
+        return song.compile();
+    }
+
+    @Test
+    void readGivesBackTheEncodedSong() throws IOException {
+        CompiledSong compiled = song();
+        MappedSong mapped = SongFormat.read(SongFormat.encode(compiled));
+        SongFormat.verify(mapped);
+
+        assertEquals(compiled.getTitle(), mapped.getTitle());
+        assertEquals(compiled.getTempo(), mapped.getTempo());
+        assertEquals(compiled.getMaxEndTick(), mapped.getMaxEndTick());
+        assertEquals(compiled.getNoteCount(), mapped.getNoteCount());
+        assertEquals(compiled.getPaletteSize(), mapped.getPaletteSize());
+        for (int p = 0; p < compiled.getPaletteSize(); p++) {
+            assertEquals(compiled.getPaletteEntry(p), mapped.getPaletteEntry(p));
+        }
+
+        // A song file keeps its notes in start order
+        for (int t = 0; t <= compiled.getMaxEndTick(); t++) {
+            assertEquals(compiled.startsTo(t) - compiled.startsFrom(t), mapped.startsTo(t) - mapped.startsFrom(t),
+                    "starts at tick " + t);
+            assertEquals(compiled.stopsTo(t) - compiled.stopsFrom(t), mapped.stopsTo(t) - mapped.stopsFrom(t),
+                    "stops at tick " + t);
+            for (int i = compiled.startsFrom(t); i < compiled.startsTo(t); i++) {
+                int c = compiled.startNote(i);
+                int m = mapped.startNote(mapped.startsFrom(t) + i - compiled.startsFrom(t));
+                assertEquals(t, mapped.getStartTick(m));
+                assertEquals(compiled.getEndTick(c), mapped.getEndTick(m));
+                assertEquals(compiled.isSustained(c), mapped.isSustained(m));
+                assertEquals(compiled.getCategory(c), mapped.getCategory(m));
+                assertEquals(compiled.getInstrument(c), mapped.getInstrument(m));
+                assertEquals(compiled.getPitch(c), mapped.getPitch(m), SongFormat.PITCH_UNIT);
+                assertEquals(compiled.getVolume(c), mapped.getVolume(m), SongFormat.VOLUME_UNIT);
+            }
+        }
+        for (int t = 0; t <= mapped.getMaxEndTick(); t++) {
+            for (int i = mapped.stopsFrom(t); i < mapped.stopsTo(t); i++) {
+                assertEquals(t, mapped.getEndTick(mapped.stopNote(i)), "stop at tick " + t);
+            }
+        }
+    }
+
+    @Test
+    void encodingAMappedSongGivesTheSameBytes() throws IOException {
+        ByteBuffer first = SongFormat.encode(song());
+        ByteBuffer second = SongFormat.encode(SongFormat.read(first.duplicate()));
+        assertEquals(first, second);
+    }
+
+    @Test
+    void truncatedFileIsRejected() {
+        ByteBuffer data = SongFormat.encode(song());
+        ByteBuffer truncated = data.slice(0, data.capacity() - SongFormat.NOTE_SIZE);
+        assertThrows(IOException.class, () -> SongFormat.read(truncated));
+    }
+
+    @Test
+    void badMagicIsRejected() {
+        ByteBuffer data = SongFormat.encode(song());
+        data.putInt(0, 0);
+        assertThrows(IOException.class, () -> SongFormat.read(data));
+    }
+
+    @Test
+    void verifyRejectsABadPaletteIndex() throws IOException {
+        ByteBuffer data = SongFormat.encode(song());
+        int notesAt = data.capacity() - SongFormat.NOTE_SIZE * song().getNoteCount();
+        data.putShort(notesAt, (short) 0x7FFF);
+
+        // Opening doesn't read the notes, so only verify and the note itself notice
+        MappedSong mapped = SongFormat.read(data);
+        assertThrows(IOException.class, () -> SongFormat.verify(mapped));
+        assertThrows(IllegalStateException.class, () -> mapped.getInstrument(0));
+    }
+}
@@ -0,0 +1,139 @@
+package org.nc.VSE;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SongLibraryTest {
+    private final Map<String, SongTimeline> songs = new HashMap<>();
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private SongTimeline song(String key) {
+        Song song = new Song(key, 120);
+        song.addNote(new Note("custom." + key, 0, 10, 1f, 1f));
+        CompiledSong compiled = song.compile();
+        songs.put(key, compiled);
+        return compiled;
+    }
+
+    // Loads on the calling thread, so the tests need no waiting
+    private SongLibrary library(int fits) {
+        song("a");
+        song("b");
+        song("c");
+        long bytes = songs.get("a").getEstimatedBytes();
+        return new SongLibrary(key -> {
+            loads.incrementAndGet();
+            return songs.get(key);
+        }, fits * bytes, Runnable::run);
+    }
+
+    @Test
+    void loadsOnceAndCaches() throws IOException {
+        SongLibrary library = library(3);
+        assertNull(library.getIfLoaded("a"));
+        assertSame(songs.get("a"), library.get("a"));
+        assertSame(songs.get("a"), library.get("a"));
+        assertEquals(1, loads.get());
+        assertEquals(1, library.getLoadedCount());
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedSong() throws IOException {
+        SongLibrary library = library(2);
+        library.get("a");
+        library.get("b");
+        library.get("a"); // b is now the least recently used
+        library.get("c");
+        assertNotNull(library.getIfLoaded("a"));
+        assertNull(library.getIfLoaded("b"));
+        assertNotNull(library.getIfLoaded("c"));
+        assertTrue(library.getLoadedBytes() <= library.getMaxBytes());
+    }
+
+    @Test
+    void pinnedSongIsNotEvicted() throws IOException {
+        SongLibrary library = library(1);
+        SongLibrary.Entry pin = library.acquire("a", library.get("a"));
+        assertTrue(library.isPinned("a"));
+
+        library.get("b");
+        assertNotNull(library.getIfLoaded("a"));
+        assertNull(library.getIfLoaded("b")); // over the bound, but a is pinned
+
+        library.release(pin);
+        assertFalse(library.isPinned("a"));
+        library.get("b");
+        assertNull(library.getIfLoaded("a"));
+        assertNotNull(library.getIfLoaded("b"));
+    }
+
+    @Test
+    void pinsCount() throws IOException {
+        SongLibrary library = library(1);
+        SongLibrary.Entry first = library.acquire("a", library.get("a"));
+        SongLibrary.Entry second = library.acquire("a", null);
+        assertSame(first, second);
+
+        library.release(first);
+        assertTrue(library.isPinned("a"));
+        library.release(second);
+        assertFalse(library.isPinned("a"));
+    }
+
+    @Test
+    void acquireOfAnEvictedSongPutsItBack() {
+        SongLibrary library = library(2);
+        assertNull(library.acquire("a", null));
+
+        SongLibrary.Entry pin = library.acquire("a", songs.get("a"));
+        assertSame(songs.get("a"), library.getIfLoaded("a"));
+        assertTrue(library.isPinned("a"));
+        library.release(pin);
+    }
+
+    @Test
+    void releaseAfterReplaceLeavesTheNewSongAlone() throws IOException {
+        SongLibrary library = library(1);
+        SongLibrary.Entry old = library.acquire("a", library.get("a"));
+
+        SongTimeline replacement = song("a");
+        library.put("a", replacement);
+        assertFalse(library.isPinned("a"));
+        SongLibrary.Entry pin = library.acquire("a", null);
+        assertNotSame(old, pin);
+
+        library.release(old);
+        library.release(old); // one release too many changes nothing either
+        assertTrue(library.isPinned("a"));
+        assertSame(replacement, library.getIfLoaded("a"));
+        library.release(pin);
+    }
+
+    @Test
+    void releaseAfterInvalidateDoesNotPinTheReloadedSong() throws IOException {
+        SongLibrary library = library(1);
+        SongLibrary.Entry old = library.acquire("a", library.get("a"));
+        library.invalidate("a");
+        assertNull(library.getIfLoaded("a"));
+        assertEquals(0, library.getLoadedBytes());
+
+        library.get("a");
+        assertEquals(2, loads.get());
+        library.release(old);
+        assertFalse(library.isPinned("a"));
+        library.get("b");
+        assertNull(library.getIfLoaded("a")); // nothing pinned, so a made room for b
+    }
+}
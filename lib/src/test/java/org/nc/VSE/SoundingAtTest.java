@@ -0,0 +1,74 @@
+package org.nc.VSE;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * forEachSoundingAt, which seeks and loops read, against a scan of every tick before.
+ */
+class SoundingAtTest {
+
+    // Notes long enough to cross several seek checkpoints (CompiledSong.SEEK_STRIDE)
+    private static CompiledSong song() {
+        Random random = new Random(42);
+        Song song = new Song("Checkpoints", 120);
+        for (int i = 0; i < 400; i++) {
+            int start = random.nextInt(2000);
+            int length = random.nextInt(4) == 0 ? 0 : random.nextInt(700);
+            song.addNote(new Note("custom.n" + random.nextInt(5), start, start + length, 1f, 1f));
+        }
+        return song.compile();
+    }
+
+    private static List<Integer> sounding(SongTimeline song, int tick) {
+        List<Integer> notes = new ArrayList<>();
+        song.forEachSoundingAt(tick, notes::add);
+        notes.sort(null);
+        return notes;
+    }
+
+    private static List<Integer> scanned(SongTimeline song, int tick) {
+        List<Integer> notes = new ArrayList<>();
+        for (int t = 0; t < Math.min(tick, song.getMaxEndTick() + 1); t++) {
+            for (int i = song.startsFrom(t); i < song.startsTo(t); i++) {
+                int note = song.startNote(i);
+                if (song.isSustained(note) && song.getEndTick(note) > tick) {
+                    notes.add(note);
+                }
+            }
+        }
+        notes.sort(null);
+        return notes;
+    }
+
+    private static void assertMatchesScan(SongTimeline song) {
+        for (int tick = 0; tick <= song.getMaxEndTick() + 1; tick++) {
+            assertEquals(scanned(song, tick), sounding(song, tick), "tick " + tick);
+        }
+    }
+
+    @Test
+    void compiledSong() {
+        assertMatchesScan(song());
+    }
+
+    @Test
+    void mappedSong() throws IOException {
+        assertMatchesScan(SongFormat.read(SongFormat.encode(song())));
+    }
+
+    @Test
+    void songViews() {
+        CompiledSong song = song();
+        assertMatchesScan(SongView.of(song).offset(7));
+        assertMatchesScan(SongView.of(song).stretch(1.5).offset(3));
+        assertMatchesScan(SongView.of(song).stretch(0.7));
+        assertMatchesScan(SongView.of(song).stretch(2).stretch(0.3));
+    }
+}